@@ -4,15 +4,28 @@ import java.util.List;
 
 public class Analyzer {
 
-    public static void analyse(List<Stmt> ast, Stdio stdio, Environment globalSymbols) {
+    /**
+     * @param inlining whether small functions are inlined (see WalkInline)
+     */
+    public static void analyse(List<Stmt> ast, Stdio stdio, SymbolTable globalSymbols, boolean inlining) {
+        var symbols = new WalkSymbol(globalSymbols);
+        var fold = new WalkFold();
         var walker = new Walker(
-                List.of(
-                    new WalkReturn(),
-                    new WalkSymbol(globalSymbols)
-                ),
+                inlining
+                    ? List.of(new WalkReturn(), symbols, fold, new WalkInline(fold, globalSymbols))
+                    : List.of(new WalkReturn(), symbols, fold),
                 stdio);
         int depthBefore = globalSymbols.depth();
         walker.walk(ast);
         assert depthBefore == globalSymbols.depth();
+
+        // Removing code needs the whole analysis (symbols unused in their scope, assignments...)
+        if (!stdio.hasError()) {
+            var assignments = new WalkInvariant.Assignments();
+            new Walker(List.of(new WalkDeadCode(symbols), assignments), stdio).walk(ast);
+            new Walker(List.of(new WalkInvariant(assignments)), stdio).walk(ast);
+            // Closures capture their free variables, wherever they are once the code is rewritten
+            new Walker(List.of(new WalkCapture()), stdio).walk(ast);
+        }
     }
 }
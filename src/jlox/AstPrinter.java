@@ -119,6 +119,16 @@ public class AstPrinter implements Expr.VoidVisitor, Stmt.VoidVisitor {
         append('('); append(expr.expression); append(')');
     }
 
+    @Override
+    public void visitInlineExpr(Expr.Inline expr) {
+        append(expr.call);
+    }
+
+    @Override
+    public void visitInvariantExpr(Expr.Invariant expr) {
+        append(expr.expression);
+    }
+
     @Override
     public void visitLambdaExpr(Expr.Lambda lambda) {
         append("fun ");
@@ -0,0 +1,138 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Instruction set, chunks and function prototypes of the bytecode backend.
+ * <p>
+ * Operands follow their opcode. Unless stated otherwise they are unsigned 16-bit big-endian
+ * (constant indexes, slots, jump offsets). For error reporting, the token of an instruction
+ * that may fail is kept in a table parallel to the code.
+ */
+final class Bytecode {
+
+    private Bytecode() {}
+
+    static final byte CONSTANT = 0;         // constant
+    static final byte NIL = 1;
+    static final byte TRUE = 2;
+    static final byte FALSE = 3;
+    static final byte POP = 4;
+    static final byte GET_LOCAL = 5;        // slot
+    static final byte SET_LOCAL = 6;        // slot
+    static final byte GET_UPVALUE = 7;      // index
+    static final byte SET_UPVALUE = 8;      // index
+    static final byte GET_GLOBAL = 9;       // slot
+    static final byte SET_GLOBAL = 10;      // slot
+    static final byte DEFINE_GLOBAL = 11;   // slot
+    static final byte GET_PROPERTY = 12;    // constant (Expr.Get)
+    static final byte SET_PROPERTY = 13;    // constant (Expr.Set)
+    static final byte GET_SUPER = 14;       // constant (Expr.Super)
+    static final byte EQUAL = 15;
+    static final byte NOT_EQUAL = 16;
+    static final byte GREATER = 17;
+    static final byte GREATER_EQUAL = 18;
+    static final byte LESS = 19;
+    static final byte LESS_EQUAL = 20;
+    static final byte ADD = 21;
+    static final byte SUBTRACT = 22;
+    static final byte MULTIPLY = 23;
+    static final byte DIVIDE = 24;
+    static final byte MODULO = 25;
+    static final byte POWER = 26;
+    static final byte NOT = 27;
+    static final byte NEGATE = 28;
+    static final byte PRINT = 29;
+    static final byte JUMP = 30;            // forward offset
+    static final byte JUMP_IF_FALSE = 31;   // forward offset, condition left on the stack
+    static final byte JUMP_IF_TRUE = 32;    // forward offset, condition left on the stack
+    static final byte LOOP = 33;            // backward offset
+    static final byte CALL = 34;            // argument count (8-bit)
+    static final byte CLOSURE = 35;         // constant (Proto), then (isLocal 8-bit, index) per upvalue
+    static final byte CLOSE_UPVALUE = 36;
+    static final byte RETURN = 37;
+    static final byte CLASS = 38;           // constant (Stmt.Class), first slot of the class scope
+    static final byte CHECK_TYPE = 39;      // constant (Expr.TypeCheck)
+    static final byte GET_METHOD = 40;      // constant (Expr.Call), keeps the receiver when it has the method
+    static final byte INVOKE = 41;          // constant (Expr.Call), argument count (8-bit)
+    static final byte SUPER_INVOKE = 42;    // constant (Expr.Super), argument count (8-bit)
+
+    static class Chunk {
+        byte[] code = new byte[64];
+        Token[] tokens = new Token[64];
+        int size = 0;
+        private final List<Object> constantList = new ArrayList<>();
+        private final Map<Object, Integer> literals = new HashMap<>();
+        Object[] constants;
+
+        void write(int value, Token token) {
+            if (size == code.length) {
+                code = Arrays.copyOf(code, size * 2);
+                tokens = Arrays.copyOf(tokens, size * 2);
+            }
+            tokens[size] = token;
+            code[size++] = (byte) value;
+        }
+
+        void writeShort(int value, Token token) {
+            if (value > 0xffff)
+                throw new LoxError(token, "Too much code to compile (more than 65535 constants, slots or bytes to jump).");
+            write(value >> 8, null);
+            write(value, null);
+        }
+
+        void patchShort(int offset, int value, Token token) {
+            if (value > 0xffff)
+                throw new LoxError(token, "Too much code to jump over.");
+            code[offset] = (byte) (value >> 8);
+            code[offset + 1] = (byte) value;
+        }
+
+        int addConstant(Object value) {
+            // Literals are shared, other constants (AST nodes, prototypes) are not
+            boolean isLiteral = value instanceof Double || value instanceof String || value instanceof Boolean;
+            if (isLiteral && literals.containsKey(value))
+                return literals.get(value);
+            constantList.add(value);
+            if (isLiteral)
+                literals.put(value, constantList.size() - 1);
+            return constantList.size() - 1;
+        }
+
+        void seal() {
+            constants = constantList.toArray();
+        }
+    }
+
+    enum Kind { SCRIPT, FUNCTION, LAMBDA, METHOD, INITIALIZER }
+
+    /**
+     * A compiled function, before it is closed over its upvalues (see VM.Closure).
+     */
+    static class Proto {
+        final String name;
+        final int arity;
+        final Kind kind;
+        final boolean isProperty;
+        final Chunk chunk = new Chunk();
+        int upvalueCount = 0;
+        /** the closure when it has no upvalues, created once by the VM */
+        VM.Closure shared = null;
+
+        Proto(String name, int arity, Kind kind, boolean isProperty) {
+            this.name = name;
+            this.arity = arity;
+            this.kind = kind;
+            this.isProperty = isProperty;
+        }
+
+        @Override
+        public String toString() {
+            return "<proto %s>".formatted(name);
+        }
+    }
+}
@@ -0,0 +1,655 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+
+import static jlox.Bytecode.*;
+
+/**
+ * Compiles the analysed AST to bytecode for the {@link VM}.
+ * <p>
+ * Variables are resolved through the declaration token found by {@link WalkSymbol}
+ * ({@code target}), so the scoping rules are exactly the analyser's ones:
+ * top-level declarations become global slots, the others become local slots on the stack,
+ * captured by enclosed functions as upvalues.
+ * <p>
+ * Every function has its callee in local slot 0, which is {@code self} for methods.
+ * A class body is a scope of its own, holding its superclasses and its class methods.
+ */
+class BytecodeCompiler implements Expr.VoidVisitor, Stmt.VoidVisitor {
+
+    private static final int MAX_LOCALS = 512;
+
+    private static class Local {
+        final Token token;
+        final int depth;
+        boolean isCaptured = false;
+
+        Local(Token token, int depth) {
+            this.token = token;
+            this.depth = depth;
+        }
+    }
+
+    private record Upvalue(Token token, boolean isLocal, int index) {}
+
+    private static class Loop {
+        final int localCount;
+        final List<Integer> breaks = new ArrayList<>();
+        final List<Integer> continues = new ArrayList<>();
+
+        Loop(int localCount) {
+            this.localCount = localCount;
+        }
+    }
+
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final Proto proto;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        final Stack<Loop> loops = new Stack<>();
+        /** first local slot of the invariant caches of the loops having one */
+        final Stack<Integer> invariants = new Stack<>();
+        int scopeDepth = 0;
+
+        FunctionState(FunctionState enclosing, Proto proto) {
+            this.enclosing = enclosing;
+            this.proto = proto;
+        }
+    }
+
+    private FunctionState current = null;
+    private final Map<Token, Integer> globals = new IdentityHashMap<>();
+    /** Declarations of functions that are properties, hence called when referenced. */
+    private final Set<Token> properties = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Stack<Stmt.Class> classes = new Stack<>();
+
+    Proto compile(List<Stmt> statements) {
+        current = new FunctionState(null, new Proto("script", 0, Kind.SCRIPT, false));
+        current.locals.add(new Local(null, 0));
+        // Functions may refer to globals declared after them.
+        for (var stmt : statements) {
+            if (stmt instanceof Stmt.Var var) declareGlobal(var.name);
+            else if (stmt instanceof Stmt.Function function) declareGlobal(function.name);
+            else if (stmt instanceof Stmt.Class klass) declareGlobal(klass.name);
+        }
+        for (var stmt : statements) {
+            compile(stmt);
+        }
+        emit(NIL, null);
+        emit(RETURN, null);
+        return endFunction();
+    }
+
+    int globalCount() {
+        return globals.size();
+    }
+
+    private void compile(Stmt stmt) {
+        if (stmt != null) stmt.voidVisit(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.voidVisit(this);
+    }
+
+    // ============ Emitting ============
+
+    private Chunk chunk() {
+        return current.proto.chunk;
+    }
+
+    private void emit(byte op, Token token) {
+        chunk().write(op, token);
+    }
+
+    private void emit(byte op, Token token, int operand) {
+        chunk().write(op, token);
+        chunk().writeShort(operand, token);
+    }
+
+    private void emitConstant(Object value, Token token) {
+        emit(CONSTANT, token, chunk().addConstant(value));
+    }
+
+    private int emitJump(byte op, Token token) {
+        emit(op, token, 0xffff);
+        return chunk().size - 2;
+    }
+
+    private void patchJump(int offset, Token token) {
+        chunk().patchShort(offset, chunk().size - offset - 2, token);
+    }
+
+    private void emitLoop(int loopStart, Token token) {
+        emit(LOOP, token);
+        chunk().writeShort(chunk().size - loopStart + 2, token);
+    }
+
+    // ============ Scopes and variables ============
+
+    private boolean isGlobalScope() {
+        return current.enclosing == null && current.scopeDepth == 0;
+    }
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope() {
+        current.scopeDepth--;
+        var locals = current.locals;
+        while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            emit(locals.get(locals.size() - 1).isCaptured ? CLOSE_UPVALUE : POP, null);
+            locals.remove(locals.size() - 1);
+        }
+    }
+
+    /**
+     * Pop the locals above the given count, without forgetting them (jumps out of a scope).
+     */
+    private void discardLocals(int localCount) {
+        for (int i = current.locals.size() - 1; i >= localCount; i--) {
+            emit(current.locals.get(i).isCaptured ? CLOSE_UPVALUE : POP, null);
+        }
+    }
+
+    private void addLocal(Token token) {
+        if (current.locals.size() >= MAX_LOCALS)
+            throw new LoxError(token, "Too many local variables in function.");
+        current.locals.add(new Local(token, current.scopeDepth));
+    }
+
+    private void declareGlobal(Token token) {
+        globals.put(token, globals.size());
+    }
+
+    /**
+     * Declare a variable whose value is on top of the stack.
+     */
+    private void defineVariable(Token token) {
+        if (isGlobalScope()) {
+            emit(DEFINE_GLOBAL, token, globals.get(token));
+        } else {
+            addLocal(token);
+        }
+    }
+
+    private static int resolveLocal(FunctionState state, Token target) {
+        for (int i = state.locals.size() - 1; i >= 0; i--) {
+            if (state.locals.get(i).token == target) return i;
+        }
+        return -1;
+    }
+
+    private static int resolveUpvalue(FunctionState state, Token target) {
+        if (state.enclosing == null) return -1;
+        int local = resolveLocal(state.enclosing, target);
+        if (local >= 0) {
+            state.enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(state, target, true, local);
+        }
+        int upvalue = resolveUpvalue(state.enclosing, target);
+        if (upvalue >= 0) {
+            return addUpvalue(state, target, false, upvalue);
+        }
+        return -1;
+    }
+
+    private static int addUpvalue(FunctionState state, Token target, boolean isLocal, int index) {
+        for (int i = 0; i < state.upvalues.size(); i++) {
+            if (state.upvalues.get(i).token() == target) return i;
+        }
+        state.upvalues.add(new Upvalue(target, isLocal, index));
+        return state.upvalues.size() - 1;
+    }
+
+    private void emitGet(Token name, Token target) {
+        int slot;
+        if ((slot = resolveLocal(current, target)) >= 0) {
+            emit(GET_LOCAL, name, slot);
+        } else if ((slot = resolveUpvalue(current, target)) >= 0) {
+            emit(GET_UPVALUE, name, slot);
+        } else if (globals.containsKey(target)) {
+            emit(GET_GLOBAL, name, globals.get(target));
+        } else {
+            var symbol = SymbolTable.predefined(name.lexeme());
+            if (symbol == null || symbol.token != target)
+                throw new LoxError(name, "Undefined identifier '%s'.".formatted(name.lexeme()));
+            var value = SymbolTable.predefinedValues()[symbol.slot];
+            emitConstant(value, name);
+            if (value instanceof LoxCallable callable && callable.isProperty())
+                emitPropertyCall(name);
+            return;
+        }
+        if (properties.contains(target))
+            emitPropertyCall(name);
+    }
+
+    private void emitPropertyCall(Token name) {
+        chunk().write(CALL, name);
+        chunk().write(0, name);
+    }
+
+    private void emitSet(Token name, Token target) {
+        int slot;
+        if ((slot = resolveLocal(current, target)) >= 0) {
+            emit(SET_LOCAL, name, slot);
+        } else if ((slot = resolveUpvalue(current, target)) >= 0) {
+            emit(SET_UPVALUE, name, slot);
+        } else if (globals.containsKey(target)) {
+            emit(SET_GLOBAL, name, globals.get(target));
+        } else {
+            throw new LoxError(name, "Undefined identifier '%s'.".formatted(name.lexeme()));
+        }
+    }
+
+    // ============ Functions ============
+
+    /**
+     * Compile a function and emit the closure creation in the enclosing function.
+     */
+    private void function(String name, List<Token> parameters, Stmt body, Kind kind, boolean isProperty, Token self) {
+        current = new FunctionState(current, new Proto(name, parameters.size(), kind, isProperty));
+        current.locals.add(new Local(self, 0));
+        beginScope();
+        for (var parameter : parameters) {
+            addLocal(parameter);
+        }
+        if (body instanceof Stmt.Expression expr) {
+            compile(expr.expression);
+            if (kind == Kind.INITIALIZER) {
+                emit(POP, null);
+                emit(GET_LOCAL, null, 0);
+            }
+        } else {
+            compile(body);
+            if (kind == Kind.INITIALIZER)
+                emit(GET_LOCAL, null, 0);
+            else
+                emit(NIL, null);
+        }
+        emit(RETURN, null);
+
+        var upvalues = current.upvalues;
+        var proto = endFunction();
+        emit(CLOSURE, null, chunk().addConstant(proto));
+        for (var upvalue : upvalues) {
+            chunk().write(upvalue.isLocal() ? 1 : 0, null);
+            chunk().writeShort(upvalue.index(), null);
+        }
+    }
+
+    private Proto endFunction() {
+        var proto = current.proto;
+        proto.upvalueCount = current.upvalues.size();
+        proto.chunk.seal();
+        current = current.enclosing;
+        return proto;
+    }
+
+    private void function(Stmt.Function stmt, Kind kind, Token self) {
+        if (stmt.isProperty) properties.add(stmt.name);
+        function(stmt.name.lexeme(), stmt.parameters, stmt.body, kind, stmt.isProperty, self);
+    }
+
+    // ============ Statements ============
+
+    @Override
+    public void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (var statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+    }
+
+    @Override
+    public void visitForBlockStmt(Stmt.ForBlock stmt) {
+        // Only reached outside a while loop, see visitWhileStmt
+        compile(stmt.body);
+        compile(stmt.updater);
+    }
+
+    @Override
+    public void visitClassStmt(Stmt.Class klass) {
+        boolean isGlobal = isGlobalScope();
+        int nameSlot = -1;
+        if (!isGlobal) {
+            // Declared first, so that methods can refer to their class.
+            emit(NIL, null);
+            addLocal(klass.name);
+            nameSlot = current.locals.size() - 1;
+        }
+        
+        beginScope();
+        int classScope = current.locals.size();
+        for (var superclass : klass.superclasses) {
+            compile(superclass);
+            addLocal(null);
+        }
+        for (var classMethod : klass.classMethods) {
+            addLocal(classMethod.name);
+            function(classMethod, Kind.FUNCTION, null);
+        }
+        classes.push(klass);
+        for (var method : klass.methods.methods) {
+            var kind = method.name.lexeme().equals("init") ? Kind.INITIALIZER : Kind.METHOD;
+            function(method, kind, klass.self);
+        }
+        classes.pop();
+        emit(CLASS, klass.name, chunk().addConstant(klass));
+        chunk().writeShort(classScope, klass.name);
+
+        if (isGlobal) {
+            emit(DEFINE_GLOBAL, klass.name, globals.get(klass.name));
+        } else {
+            emit(SET_LOCAL, klass.name, nameSlot);
+            emit(POP, null);
+        }
+        endScope();
+    }
+
+    @Override
+    public void visitMethodsStmt(Stmt.Methods stmt) {
+        // Compiled with the class
+    }
+
+    @Override
+    public void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emit(POP, null);
+    }
+
+    @Override
+    public void visitFunctionStmt(Stmt.Function stmt) {
+        if (isGlobalScope()) {
+            function(stmt, Kind.FUNCTION, null);
+            emit(DEFINE_GLOBAL, stmt.name, globals.get(stmt.name));
+        } else {
+            // Declared first, for recursion
+            addLocal(stmt.name);
+            function(stmt, Kind.FUNCTION, null);
+        }
+    }
+
+    @Override
+    public void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+        int elseJump = emitJump(JUMP_IF_FALSE, null);
+        emit(POP, null);
+        compile(stmt.then);
+        int endJump = emitJump(JUMP, null);
+        patchJump(elseJump, null);
+        emit(POP, null);
+        compile(stmt.else_);
+        patchJump(endJump, null);
+    }
+
+    @Override
+    public void visitKeywordStmt(Stmt.Keyword stmt) {
+        var loop = current.loops.peek();
+        discardLocals(loop.localCount);
+        int jump = emitJump(JUMP, stmt.keyword);
+        switch (stmt.keyword.type()) {
+            case BREAK -> loop.breaks.add(jump);
+            case CONTINUE -> loop.continues.add(jump);
+            default -> throw new IllegalStateException("Unexpected value: " + stmt.keyword.lexeme());
+        }
+    }
+
+    @Override
+    public void visitLastStmt(Stmt.Last stmt) {
+        compile(stmt.expression);
+        emit(PRINT, null);
+    }
+
+    @Override
+    public void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emit(PRINT, null);
+    }
+
+    @Override
+    public void visitReturnStmt(Stmt.Return stmt) {
+        if (current.proto.kind == Kind.INITIALIZER)
+            emit(GET_LOCAL, stmt.keyword, 0);
+        else if (stmt.value == null)
+            emit(NIL, stmt.keyword);
+        else
+            compile(stmt.value);
+        emit(RETURN, stmt.keyword);
+    }
+
+    @Override
+    public void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null)
+            emitConstant(Environment.UNINITIALIZED, stmt.name);
+        else
+            compile(stmt.initializer);
+        defineVariable(stmt.name);
+    }
+
+    @Override
+    public void visitWhileStmt(Stmt.While stmt) {
+        if (stmt.invariants > 0) {
+            // Hidden locals caching the invariants, nil until computed
+            beginScope();
+            current.invariants.push(current.locals.size());
+            for (int i = 0; i < stmt.invariants; i++) {
+                emit(NIL, null);
+                addLocal(null);
+            }
+        }
+        int loopStart = chunk().size;
+        compile(stmt.condition);
+        int exitJump = emitJump(JUMP_IF_FALSE, null);
+        emit(POP, null);
+
+        var loop = new Loop(current.locals.size());
+        current.loops.push(loop);
+        Stmt updater = null;
+        if (stmt.body instanceof Stmt.ForBlock forBlock) {
+            compile(forBlock.body);
+            updater = forBlock.updater;
+        } else {
+            compile(stmt.body);
+        }
+        for (var jump : loop.continues) patchJump(jump, null);
+        compile(updater);
+        current.loops.pop();
+
+        emitLoop(loopStart, stmt.keyword);
+        patchJump(exitJump, null);
+        emit(POP, null);
+        for (var jump : loop.breaks) patchJump(jump, null);
+        if (stmt.invariants > 0) {
+            current.invariants.pop();
+            endScope();
+        }
+    }
+
+    // ============ Expressions ============
+
+    @Override
+    public void visitAssignExpr(Expr.Assign assign) {
+        compile(assign.value);
+        emitSet(assign.name, assign.target);
+    }
+
+    @Override
+    public void visitBinaryExpr(Expr.Binary binary) {
+        var op = binary.operator;
+        switch (op.type()) {
+            case AND, OR -> {
+                compile(binary.left);
+                int endJump = emitJump(op.type() == TokenType.AND ? JUMP_IF_FALSE : JUMP_IF_TRUE, op);
+                emit(POP, null);
+                compile(binary.right);
+                patchJump(endJump, op);
+                return;
+            }
+            case COMMA -> {
+                compile(binary.left);
+                emit(POP, null);
+                compile(binary.right);
+                return;
+            }
+        }
+        compile(binary.left);
+        compile(binary.right);
+        emit(switch (op.type()) {
+            case BANG_EQUAL -> NOT_EQUAL;
+            case EQUAL_EQUAL -> EQUAL;
+            case GREATER -> GREATER;
+            case GREATER_EQUAL -> GREATER_EQUAL;
+            case LESS -> LESS;
+            case LESS_EQUAL -> LESS_EQUAL;
+            case MINUS -> SUBTRACT;
+            case PLUS -> ADD;
+            case PERCENT -> MODULO;
+            case SLASH -> DIVIDE;
+            case STAR -> MULTIPLY;
+            case STAR_STAR -> POWER;
+            default -> throw new IllegalStateException("Unexpected value: " + op.type());
+        }, op);
+    }
+
+    @Override
+    public void visitCallExpr(Expr.Call call) {
+        if (call.callee instanceof Expr.Super superExpr) {
+            // Super call: self is slot 0 of the resolved method (see VM)
+            if (classes.empty())
+                throw new LoxError(superExpr.keyword, "Super used outside any classes");
+            emitGet(superExpr.keyword, classes.peek().self);
+            for (var argument : call.arguments) {
+                compile(argument);
+            }
+            emit(SUPER_INVOKE, call.leftPar, chunk().addConstant(superExpr));
+            chunk().write(call.arguments.size(), call.leftPar);
+            return;
+        }
+        if (call.callee instanceof Expr.Get get) {
+            // Method call: no bound method is created (see VM)
+            compile(get.object);
+            int constant = chunk().addConstant(call);
+            emit(GET_METHOD, get.name, constant);
+            for (var argument : call.arguments) {
+                compile(argument);
+            }
+            emit(INVOKE, call.leftPar, constant);
+            chunk().write(call.arguments.size(), call.leftPar);
+            return;
+        }
+        compile(call.callee);
+        for (var argument : call.arguments) {
+            compile(argument);
+        }
+        chunk().write(CALL, call.leftPar);
+        chunk().write(call.arguments.size(), call.leftPar);
+    }
+
+    @Override
+    public void visitGetExpr(Expr.Get get) {
+        compile(get.object);
+        emit(GET_PROPERTY, get.name, chunk().addConstant(get));
+    }
+
+    @Override
+    public void visitGroupingExpr(Expr.Grouping grouping) {
+        compile(grouping.expression);
+    }
+
+    /**
+     * The call is kept: locals live at fixed stack slots, which the middle of an expression cannot give
+     * to the parameters. Inlined calls without parameter scope are compiled as any expression.
+     */
+    @Override
+    public void visitInlineExpr(Expr.Inline inline) {
+        compile(inline.call);
+    }
+
+    /**
+     * The cached value is recomputed while it is falsy (not computed yet).
+     */
+    @Override
+    public void visitInvariantExpr(Expr.Invariant invariant) {
+        var caches = current.invariants;
+        int slot = caches.get(caches.size() - 1 - invariant.hops) + invariant.slot;
+        emit(GET_LOCAL, null, slot);
+        int cached = emitJump(JUMP_IF_TRUE, null);
+        emit(POP, null);
+        compile(invariant.expression);
+        emit(SET_LOCAL, null, slot);
+        patchJump(cached, null);
+    }
+
+    @Override
+    public void visitLambdaExpr(Expr.Lambda lambda) {
+        function("lambda", lambda.parameters, lambda.body, Kind.LAMBDA, false, null);
+    }
+
+    @Override
+    public void visitLiteralExpr(Expr.Literal literal) {
+        var value = literal.value;
+        if (value == null) emit(NIL, null);
+        else if (value.equals(true)) emit(TRUE, null);
+        else if (value.equals(false)) emit(FALSE, null);
+        else emitConstant(value, null);
+    }
+
+    @Override
+    public void visitSetExpr(Expr.Set set) {
+        compile(set.object);
+        compile(set.value);
+        emit(SET_PROPERTY, set.name, chunk().addConstant(set));
+    }
+
+    @Override
+    public void visitSuperExpr(Expr.Super expr) {
+        if (classes.empty())
+            throw new LoxError(expr.keyword, "Super used outside any classes");
+        emitGet(expr.keyword, classes.peek().self);
+        emit(GET_SUPER, expr.method, chunk().addConstant(expr));
+    }
+
+    @Override
+    public void visitTernaryExpr(Expr.Ternary ternary) {
+        compile(ternary.left);
+        int elseJump = emitJump(JUMP_IF_FALSE, null);
+        emit(POP, null);
+        compile(ternary.middle);
+        int endJump = emitJump(JUMP, null);
+        patchJump(elseJump, null);
+        emit(POP, null);
+        compile(ternary.right);
+        patchJump(endJump, null);
+    }
+
+    @Override
+    public void visitTypeCheckExpr(Expr.TypeCheck typeCheck) {
+        compile(typeCheck.value);
+        emit(CHECK_TYPE, typeCheck.name, chunk().addConstant(typeCheck));
+    }
+
+    @Override
+    public void visitUnaryExpr(Expr.Unary unary) {
+        compile(unary.right);
+        switch (unary.operator.type()) {
+            case BANG -> emit(NOT, unary.operator);
+            case MINUS -> emit(NEGATE, unary.operator);
+            default -> throw new IllegalStateException("Unexpected value: " + unary.operator.type());
+        }
+    }
+
+    @Override
+    public void visitVariableExpr(Expr.Variable variable) {
+        emitGet(variable.name, variable.target);
+    }
+}
@@ -0,0 +1,511 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static jlox.Interpreter.*;
+
+/**
+ * Closure compilation: after analysis, every statement and expression is converted once
+ * into a Java lambda, with its operator already chosen and its children already bound.
+ * Running the program is then a matter of calling these lambdas, without going through
+ * the visitors again.
+ * <p>
+ * The {@link Interpreter} is still the runtime: it holds the environment, the stdio and
+ * the pending return value, and its helpers are shared so both engines behave the same.
+ * Function bodies are compiled as well and attached to their AST node ({@code code}),
+ * where {@link LoxCallable.Lambda} picks them up.
+ */
+public class ClosureCompiler implements Expr.Visitor<ClosureCompiler.Eval>, Stmt.Visitor<ClosureCompiler.Exec> {
+
+    @FunctionalInterface
+    interface Eval {
+        Object eval(Interpreter in);
+    }
+
+    @FunctionalInterface
+    interface Exec {
+        Completion exec(Interpreter in);
+    }
+
+    private static final Exec NOOP = in -> Completion.NORMAL;
+
+    public static void run(List<Stmt> statements, Interpreter interpreter, Stdio stdio) {
+        var program = new ClosureCompiler().compile(statements);
+        interpreter.stdio = stdio;
+        try {
+            for (var stmt : program) {
+                stmt.exec(interpreter);
+            }
+        } catch (Interpreter.Exit exit) {
+            stdio.exit(exit.code);
+        } catch (LoxError error) {
+            stdio.errorAtToken(error.token, error.getMessage());
+        }
+    }
+
+    Exec[] compile(List<Stmt> statements) {
+        List<Exec> code = new ArrayList<>();
+        for (var stmt : statements) {
+            if (stmt != null) code.add(compile(stmt));
+        }
+        return code.toArray(new Exec[0]);
+    }
+
+    Exec compile(Stmt stmt) {
+        return stmt == null ? NOOP : stmt.visit(this);
+    }
+
+    Eval compile(Expr expr) {
+        return expr.visit(this);
+    }
+
+    private Eval[] compileAll(List<Expr> exprs) {
+        var code = new Eval[exprs.size()];
+        for (int i = 0; i < code.length; i++) {
+            code[i] = compile(exprs.get(i));
+        }
+        return code;
+    }
+
+    /**
+     * Compile a function body into a code returning the value of the call.
+     */
+    private Eval compileBody(Stmt body) {
+        if (body instanceof Stmt.Expression expr) {
+            return compile(expr.expression);
+        }
+        var code = compile(body);
+        return in -> code.exec(in) == Completion.RETURN ? in.takeReturnValue() : null;
+    }
+
+    // ============ Statements ============
+
+    @Override
+    public Exec visitBlockStmt(Stmt.Block block) {
+        var statements = compile(block.statements);
+        if (!block.scoped) {
+            return in -> {
+                for (var stmt : statements) {
+                    var completion = stmt.exec(in);
+                    if (completion != Completion.NORMAL)
+                        return completion;
+                }
+                return Completion.NORMAL;
+            };
+        }
+        return in -> {
+            var environment = in.environment;
+            environment.push();
+            try {
+                for (var stmt : statements) {
+                    var completion = stmt.exec(in);
+                    if (completion != Completion.NORMAL)
+                        return completion;
+                }
+                return Completion.NORMAL;
+            } finally {
+                environment.pop();
+            }
+        };
+    }
+
+    @Override
+    public Exec visitForBlockStmt(Stmt.ForBlock stmt) {
+        var body = compile(stmt.body);
+        var updater = compile(stmt.updater);
+        return in -> {
+            var completion = body.exec(in);
+            if (completion == Completion.BREAK || completion == Completion.RETURN)
+                return completion;
+            return updater.exec(in);
+        };
+    }
+
+    @Override
+    public Exec visitClassStmt(Stmt.Class klass) {
+        var superclasses = new Eval[klass.superclasses.size()];
+        for (int i = 0; i < superclasses.length; i++) {
+            superclasses[i] = compile(klass.superclasses.get(i));
+        }
+        for (var method : klass.classMethods) {
+            method.code = compileBody(method.body);
+        }
+        for (var method : klass.methods.methods) {
+            method.code = compileBody(method.body);
+        }
+        return in -> {
+            List<LoxClass> classes = new ArrayList<>(superclasses.length);
+            in.environment.define(klass.slot, Environment.UNINITIALIZED);
+            in.environment.push();
+            for (int i = 0; i < superclasses.length; i++) {
+                var superclass = klass.superclasses.get(i);
+                classes.add(downcast(superclasses[i].eval(in), LoxClass.class, "class", superclass.name, "superclass"));
+            }
+            in.defineClass(klass, classes);
+            return Completion.NORMAL;
+        };
+    }
+
+    @Override
+    public Exec visitMethodsStmt(Stmt.Methods stmt) {
+        return NOOP;
+    }
+
+    @Override
+    public Exec visitExpressionStmt(Stmt.Expression stmt) {
+        var expression = compile(stmt.expression);
+        return in -> {
+            expression.eval(in);
+            return Completion.NORMAL;
+        };
+    }
+
+    @Override
+    public Exec visitFunctionStmt(Stmt.Function stmt) {
+        stmt.code = compileBody(stmt.body);
+        return in -> {
+            in.defineFunction(stmt);
+            return Completion.NORMAL;
+        };
+    }
+
+    @Override
+    public Exec visitIfStmt(Stmt.If stmt) {
+        var condition = compile(stmt.condition);
+        var then = compile(stmt.then);
+        var else_ = compile(stmt.else_);
+        return in -> isTruthy(condition.eval(in)) ? then.exec(in) : else_.exec(in);
+    }
+
+    @Override
+    public Exec visitKeywordStmt(Stmt.Keyword stmt) {
+        return switch (stmt.keyword.type()) {
+            case BREAK -> in -> Completion.BREAK;
+            case CONTINUE -> in -> Completion.CONTINUE;
+            default -> throw new IllegalStateException("Unexpected value: " + stmt.keyword.lexeme());
+        };
+    }
+
+    @Override
+    public Exec visitLastStmt(Stmt.Last stmt) {
+        return print(compile(stmt.expression));
+    }
+
+    @Override
+    public Exec visitPrintStmt(Stmt.Print stmt) {
+        return print(compile(stmt.expression));
+    }
+
+    private static Exec print(Eval expression) {
+        return in -> {
+            in.stdio.print(expression.eval(in));
+            return Completion.NORMAL;
+        };
+    }
+
+    @Override
+    public Exec visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) {
+            return in -> in.returnWith(null);
+        }
+        var value = stmt.value instanceof Expr.Call call ? compileCall(call, true) : compile(stmt.value);
+        return in -> in.returnWith(value.eval(in));
+    }
+
+    @Override
+    public Exec visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) {
+            return in -> {
+                in.environment.define(stmt.slot, Environment.UNINITIALIZED);
+                return Completion.NORMAL;
+            };
+        }
+        var initializer = compile(stmt.initializer);
+        return in -> {
+            in.environment.define(stmt.slot, initializer.eval(in));
+            return Completion.NORMAL;
+        };
+    }
+
+    @Override
+    public Exec visitWhileStmt(Stmt.While stmt) {
+        var condition = compile(stmt.condition);
+        var body = compile(stmt.body);
+        var keyword = stmt.keyword;
+        Exec loop = in -> {
+            while (isTruthy(condition.eval(in))) {
+                in.step(keyword);
+                var completion = body.exec(in);
+                if (completion == Completion.BREAK) break;
+                if (completion == Completion.RETURN) return completion;
+            }
+            return Completion.NORMAL;
+        };
+        if (stmt.invariants == 0) return loop;
+        int invariants = stmt.invariants;
+        return in -> {
+            in.enterLoop(invariants);
+            try {
+                return loop.exec(in);
+            } finally {
+                in.leaveLoop();
+            }
+        };
+    }
+
+    // ============ Expressions ============
+
+    @Override
+    public Eval visitAssignExpr(Expr.Assign expr) {
+        var value = compile(expr.value);
+        int hops = expr.hops, slot = expr.slot;
+        return in -> {
+            Object result = value.eval(in);
+            in.environment.set(hops, slot, result);
+            return result;
+        };
+    }
+
+    @Override
+    public Eval visitBinaryExpr(Expr.Binary expr) {
+        var left = compile(expr.left);
+        var right = compile(expr.right);
+        var op = expr.operator;
+        return switch (op.type()) {
+            case AND -> in -> {
+                var l = left.eval(in);
+                return isTruthy(l) ? right.eval(in) : l;
+            };
+            case OR -> in -> {
+                var l = left.eval(in);
+                return isTruthy(l) ? l : right.eval(in);
+            };
+            case COMMA -> in -> {
+                left.eval(in);
+                return right.eval(in);
+            };
+            case EQUAL_EQUAL -> in -> areEqual(left.eval(in), right.eval(in));
+            case BANG_EQUAL -> in -> !areEqual(left.eval(in), right.eval(in));
+            case PLUS -> in -> {
+                var l = left.eval(in);
+                if (l instanceof Double a) {
+                    var r = right.eval(in);
+                    if (r instanceof Double b) return a + b;
+                    if (r instanceof String str) return Stdio.stringify(a) + str;
+                    throw new LoxError(op, "Number cannot be added with %s.".formatted(typeName(r)));
+                }
+                if (l instanceof String str) return str + Stdio.stringify(right.eval(in));
+                throw notApplicable(op, l);
+            };
+            case MINUS -> in -> leftNumber(left, in, op) - number(right.eval(in), op, "right operand");
+            case STAR -> in -> leftNumber(left, in, op) * number(right.eval(in), op, "right operand");
+            case STAR_STAR -> in -> Math.pow(leftNumber(left, in, op), number(right.eval(in), op, "right operand"));
+            case SLASH -> in -> leftNumber(left, in, op) / divisor(right.eval(in), op);
+            case PERCENT -> in -> leftNumber(left, in, op) % divisor(right.eval(in), op);
+            case GREATER -> in -> {
+                var l = left.eval(in);
+                if (l instanceof Double a) return a > number(right.eval(in), op, "right operand");
+                return compareStrings(l, right, in, op) > 0;
+            };
+            case GREATER_EQUAL -> in -> {
+                var l = left.eval(in);
+                if (l instanceof Double a) return a >= number(right.eval(in), op, "right operand");
+                return compareStrings(l, right, in, op) >= 0;
+            };
+            case LESS -> in -> {
+                var l = left.eval(in);
+                if (l instanceof Double a) return a < number(right.eval(in), op, "right operand");
+                return compareStrings(l, right, in, op) < 0;
+            };
+            case LESS_EQUAL -> in -> {
+                var l = left.eval(in);
+                if (l instanceof Double a) return a <= number(right.eval(in), op, "right operand");
+                return compareStrings(l, right, in, op) <= 0;
+            };
+            default -> throw new IllegalStateException("Unexpected value: " + op.type());
+        };
+    }
+
+    /**
+     * Evaluate a left operand that must be a number.
+     */
+    private static double leftNumber(Eval left, Interpreter in, Token operator) {
+        var value = left.eval(in);
+        if (value instanceof Double d) return d;
+        throw notApplicable(operator, value);
+    }
+
+    private static double divisor(Object right, Token operator) {
+        // Challenge 7.3
+        double divisor = number(right, operator, "right operand");
+        if (divisor == 0)
+            throw new LoxError(operator, "Division by zero.");
+        return divisor;
+    }
+
+    /**
+     * String comparison (challenge 7.1), when the left operand is not a number.
+     */
+    private static int compareStrings(Object left, Eval right, Interpreter in, Token operator) {
+        if (left instanceof String str)
+            return str.compareTo(downcast(right.eval(in), String.class, "string", operator, "right operand"));
+        throw notApplicable(operator, left);
+    }
+
+    @Override
+    public Eval visitCallExpr(Expr.Call expr) {
+        return compileCall(expr, false);
+    }
+
+    /**
+     * @param tail the call is the value of a return, left pending for the caller (see Interpreter.complete)
+     */
+    private Eval compileCall(Expr.Call expr, boolean tail) {
+        var arguments = compileAll(expr.arguments);
+        var leftPar = expr.leftPar;
+        if (expr.callee instanceof Expr.Get get) return compileMethodCall(expr, get, arguments, tail);
+        if (expr.callee instanceof Expr.Super superExpr) {
+            return in -> {
+                var self = in.self(superExpr);
+                var method = self.superMethod(superExpr);
+                callable(method, leftPar, arguments.length);
+                return in.invoke(method, self, leftPar, evalAll(in, arguments), tail);
+            };
+        }
+        var callee = compile(expr.callee);
+        return in -> {
+            var function = callable(callee.eval(in), leftPar, arguments.length);
+            return in.invoke(function, null, leftPar, evalAll(in, arguments), tail);
+        };
+    }
+
+    /**
+     * Call 'object.name(...)': a method is found through the call site cache and called without binding it.
+     */
+    private Eval compileMethodCall(Expr.Call call, Expr.Get get, Eval[] arguments, boolean tail) {
+        var object = compile(get.object);
+        var leftPar = call.leftPar;
+        return in -> {
+            var value = object.eval(in);
+            if (value instanceof LoxInstance instance) {
+                var method = call.cache.method(instance, get.name, leftPar, arguments.length);
+                if (method != null) return in.invoke(method, instance, leftPar, evalAll(in, arguments), tail);
+            }
+            var function = callable(in.getProperty(value, get), leftPar, arguments.length);
+            return in.invoke(function, null, leftPar, evalAll(in, arguments), tail);
+        };
+    }
+
+    private static Object[] evalAll(Interpreter in, Eval[] arguments) {
+        var values = new Object[arguments.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = arguments[i].eval(in);
+        }
+        return values;
+    }
+
+    @Override
+    public Eval visitGetExpr(Expr.Get get) {
+        var object = compile(get.object);
+        return in -> in.getProperty(object.eval(in), get);
+    }
+
+    @Override
+    public Eval visitGroupingExpr(Expr.Grouping grouping) {
+        return compile(grouping.expression);
+    }
+
+    @Override
+    public Eval visitInlineExpr(Expr.Inline inline) {
+        var arguments = compileAll(inline.call.arguments);
+        var body = compile(inline.body);
+        int slot = inline.slot;
+        return in -> {
+            for (int i = 0; i < arguments.length; i++) {
+                in.environment.define(slot + i, arguments[i].eval(in));
+            }
+            return body.eval(in);
+        };
+    }
+
+    @Override
+    public Eval visitInvariantExpr(Expr.Invariant invariant) {
+        var expression = compile(invariant.expression);
+        int hops = invariant.hops, slot = invariant.slot;
+        return in -> {
+            var cache = in.loopCache(hops);
+            var value = cache[slot];
+            if (value == null) value = cache[slot] = expression.eval(in);
+            return value;
+        };
+    }
+
+    @Override
+    public Eval visitLambdaExpr(Expr.Lambda lambda) {
+        lambda.code = compileBody(lambda.body);
+        return in -> in.closure(lambda);
+    }
+
+    @Override
+    public Eval visitLiteralExpr(Expr.Literal literal) {
+        var value = literal.value;
+        return in -> value;
+    }
+
+    @Override
+    public Eval visitSetExpr(Expr.Set set) {
+        var object = compile(set.object);
+        var value = compile(set.value);
+        return in -> {
+            if (object.eval(in) instanceof LoxInstance instance) {
+                return set.cache.set(instance, set.name, value.eval(in));
+            }
+            throw new LoxError(set.name, "Left side of '.%s' is not an instance".formatted(set.name.lexeme()));
+        };
+    }
+
+    @Override
+    public Eval visitSuperExpr(Expr.Super expr) {
+        return in -> in.superMethod(expr);
+    }
+
+    @Override
+    public Eval visitTernaryExpr(Expr.Ternary ternary) {
+        var left = compile(ternary.left);
+        var middle = compile(ternary.middle);
+        var right = compile(ternary.right);
+        return in -> isTruthy(left.eval(in)) ? middle.eval(in) : right.eval(in);
+    }
+
+    @Override
+    public Eval visitTypeCheckExpr(Expr.TypeCheck typeCheck) {
+        var value = compile(typeCheck.value);
+        return in -> {
+            var result = value.eval(in);
+            if (!typeCheck.type.isInstance(result))
+                throw new TypeMismatchError(typeCheck.name, typeCheck.type, result);
+            return result;
+        };
+    }
+
+    @Override
+    public Eval visitUnaryExpr(Expr.Unary unary) {
+        var right = compile(unary.right);
+        var op = unary.operator;
+        return switch (op.type()) {
+            case BANG -> in -> !isTruthy(right.eval(in));
+            case MINUS -> in -> - number(right.eval(in), op, "right operand");
+            default -> throw new IllegalStateException("Unexpected value: " + op.type());
+        };
+    }
+
+    @Override
+    public Eval visitVariableExpr(Expr.Variable variable) {
+        int hops = variable.hops, slot = variable.slot;
+        var name = variable.name;
+        if (variable.checked)
+            return in -> in.propertyValue(in.environment.get(hops, slot, name), variable);
+        return in -> in.propertyValue(in.environment.get(hops, slot), variable);
+    }
+}
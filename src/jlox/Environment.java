@@ -1,29 +1,65 @@
 package jlox;
 
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Stack;
-
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The scopes of the running code, holding the values of the variables by slot as resolved
+ * in the {@link SymbolTable} by WalkSymbol. A variable captured by a closure is held in a cell
+ * shared by the closure and the scope declaring it.
+ * <p>
+ * The analysis proves the assignments legal, so values are stored as is. Only the reads flagged
+ * by WalkSymbol check that the variable holds a value (see {@link #get(int, int, Token)}).
+ */
 public class Environment {
 
+    /**
+     * Coordinates of a symbol captured by a closure, from the scope creating the closure (see WalkCapture).
+     * @param name token used for error reporting
+     */
+    record Capture(Token name, int hops, int slot) {}
+
+    /** value of a variable declared without an initializer, or of a declaration capturing itself until defined */
+    static final Object UNINITIALIZED = new Object();
+    /** value of a slot not defined yet (a REPL line analysed a declaration it failed to run) */
+    private static final Object UNDEFINED = new Object();
+    private static final Object[] NO_VALUES = new Object[0];
+
+    /**
+     * A variable captured by a closure, boxed when the first closure captures it.
+     */
+    private static final class Cell {
+        Object value;
+
+        Cell(Object value) {
+            this.value = value;
+        }
+    }
+
     private Scope scope;
-    private final Stack<Scope> swapped = new Stack<>();
+    /** scopes saved by swap (callers of the running functions) */
+    private Scope[] swapped = new Scope[64];
+    private int swapCount = 0;
 
     Environment() {
         reset();
     }
 
     void reset() {
-        scope = new Scope(Scope.GLOBAL, false, false);
+        scope = new Scope(Scope.GLOBAL, NO_VALUES);
     }
 
     void push() {
-        push(false);
+        scope = new Scope(scope, NO_VALUES);
     }
 
-    void push(boolean readonly) {
-        scope = new Scope(scope, readonly, true);
+    /**
+     * Push the scope of a function call, with room for its parameters and locals.
+     * @param arguments the values of the parameters, owned by the callee: they become the first slots
+     */
+    private void pushFrame(int locals, Object[] arguments) {
+        scope = new Scope(scope, locals == 0 ? NO_VALUES
+                : arguments.length == locals ? arguments : Arrays.copyOf(arguments, locals));
     }
 
     void pop() {
@@ -31,72 +67,103 @@ public class Environment {
         assert scope.outer != null; // We don't want to pop to the global scope!
     }
 
-    int depth() {
-        int depth = 0;
-        Scope current = scope;
-        while (current != null) {
-            depth++;
-            current = current.outer;
+    Scoping getScoping() { return new Scoping(scope); }
+
+    /**
+     * Scoping of a closure created in the current scope: a scope holding the captured variables only,
+     * so that the closure does not keep the rest of the scope chain alive. The variables are boxed in cells
+     * shared with their declaring scope: assignments on either side are seen by the other.
+     * @param captures free variables of the closure as resolved by WalkCapture, null to capture the whole scope chain
+     */
+    Scoping capture(List<Capture> captures) {
+        if (captures == null) return getScoping();
+        var cells = captures.isEmpty() ? NO_VALUES : new Object[captures.size()];
+        for (int i = 0; i < cells.length; i++) {
+            var capture = captures.get(i);
+            cells[i] = scope(capture.hops()).cell(capture.slot());
         }
-        return depth;
+        return new Scoping(new Scope(null, cells));
     }
 
-    Scoping getScoping() { return new Scoping(scope); }
-
     /**
      * Save the current scope and replace with a new one (function call).
      * @param scoping from @getScoping
+     * @param locals number of slots of the function scope, as resolved by WalkSymbol
+     * @param arguments values of the parameters, owned by the callee
      */
-    void swap(Scoping scoping) {
-        swapped.push(scope);
+    void swap(Scoping scoping, int locals, Object[] arguments) {
+        save();
         scope = scoping.scope;
-        push();
+        pushFrame(locals, arguments);
     }
 
     /**
-     * Call to reestablish a previously swapped scope.
+     * Same as swap(scoping, locals, arguments), with a scope holding self between the scoping and the frame (method call).
      */
-    void unswap() {
-        pop();
-        scope = swapped.pop();
+    void swap(Scoping scoping, LoxInstance instance, int locals, Object[] arguments) {
+        save();
+        scope = scoping.bound(instance);
+        pushFrame(locals, arguments);
     }
 
-    void defineUninitializedVariable(Token name) {
-        defineSymbol(name, Symbol.UNINITIALIZED, Symbol.Type.VAR, false);
+    private void save() {
+        if (swapCount == swapped.length) swapped = Arrays.copyOf(swapped, swapCount * 2);
+        swapped[swapCount++] = scope;
     }
 
-    Symbol defineSymbol(Token name, Object value, Symbol.Type type, boolean readonlySvp) {
-        // NB Symbol can be redefined without error
-        return scope.define(name.lexeme(), name, value, type, readonlySvp);
+    /**
+     * Call to reestablish a previously swapped scope.
+     */
+    void unswap() {
+        scope = swapped[--swapCount];
+        swapped[swapCount] = null;
     }
 
-    Collection<Symbol> localSymbols() {
-        return scope.symbols.values();
+    /**
+     * Define a variable at the slot assigned during analysis, in the current scope.
+     */
+    void define(int slot, Object value) {
+        scope.define(slot, value);
     }
 
     /**
-     *
-     * @return True if the current scope has parameters defined into it
+     * @param hops number of scopes to go up from the current scope
+     * @param slot index of the variable in that scope
+     * @return the value of the variable, known to be defined and initialized
      */
-    boolean hasNoLocalParameters() {
-        return localSymbols().stream().noneMatch(sym -> sym.type == Symbol.Type.PARAMETER);
+    Object get(int hops, int slot) {
+        var value = scope(hops).values[slot];
+        return value instanceof Cell cell ? cell.value : value;
     }
 
-    Symbol getSymbol(Token symbol) {
-        return getSymbol(symbol, null);
+    /**
+     * Same as get(hops, slot), for the variables that may hold no value (flagged checked by WalkSymbol).
+     * @param name token used for error reporting
+     */
+    Object get(int hops, int slot, Token name) {
+        var values = scope(hops).values;
+        var value = slot < values.length ? values[slot] : UNDEFINED;
+        if (value instanceof Cell cell) value = cell.value;
+        if (value == UNINITIALIZED)
+            throw new LoxError(name, "variable '%s' is uninitialized.".formatted(name.lexeme()));
+        if (value == UNDEFINED)
+            throw new LoxError(name, "Undefined identifier '%s'.".formatted(name.lexeme()));
+        return value;
     }
 
-    Symbol getSymbol(Token symbol, Token target) {
-        String name = symbol.lexeme();
-        Symbol sym = scope.get(name, target);
-        if (sym == null) {
-            throw new LoxError(symbol, "Undefined identifier '%s'.".formatted(name));
-        }
-        return sym;
+    /**
+     * Assign a variable, which the analysis proved to be assignable.
+     */
+    void set(int hops, int slot, Object value) {
+        scope(hops).set(slot, value);
     }
 
-    void assignSymbol(Token symbol, Object value, Token target) {
-        getSymbol(symbol, target).setValue(symbol, value);
+    private Scope scope(int hops) {
+        Scope current = scope;
+        for (int i = 0; i < hops; i++) {
+            current = current.outer;
+        }
+        return current;
     }
 
     static class Scoping {
@@ -106,57 +173,56 @@ public class Environment {
             this.scope = scope;
         }
 
-        Scoping bind(Token self, LoxInstance instance) {
-            Scope bound = new Scope(scope, true, true);
-            bound.define(self.lexeme(), self, instance, Symbol.Type.SPECIAL, true);
-            return new Scoping(bound);
+        /**
+         * Scope holding self in slot 0, as analysed in WalkSymbol.
+         */
+        private Scope bound(LoxInstance instance) {
+            return new Scope(scope, new Object[] { instance });
         }
     }
 
     private static class Scope {
-        private final Map<String, Symbol> symbols = new HashMap<>();
+        private Object[] values;
         private final Scope outer;
-        private final boolean readonly;
-
-        private final boolean oneDefinitionOnly;
 
-        private Scope(Scope outer, boolean readonly, boolean oneDefinitionOnly) {
+        private Scope(Scope outer, Object[] values) {
             this.outer = outer;
-            this.readonly = readonly;
-            this.oneDefinitionOnly = oneDefinitionOnly;
+            this.values = values;
         }
 
-        Symbol define(String name, Token token, Object value, Symbol.Type type, boolean readonlySvp) {
-            Symbol previousSym = symbols.get(name);
-            if (oneDefinitionOnly && previousSym != null) {
-                throw new LoxError(token,
-                        "%s (at line %d) cannot be redeclared as a new %s."
-                                .formatted(previousSym.name(), previousSym.token.line(), Symbol.typeName(type)));
-            }
-            Symbol newSym = new Symbol(token, readonly || readonlySvp, value, type);
-            symbols.put(name, newSym);
-            return newSym;
+        void define(int slot, Object value) {
+            if (slot >= values.length) grow(slot);
+            values[slot] = value;
         }
 
-        Symbol get(String name, Token target) {
-            if (symbols.containsKey(name)) {
-                Symbol symbol = symbols.get(name);
-                if (target == null || target == symbol.token) return symbol;
-            }
-            if (outer != null) {
-                return outer.get(name, target);
+        void set(int slot, Object value) {
+            if (slot >= values.length) grow(slot);
+            if (values[slot] instanceof Cell cell) {
+                cell.value = value;
+            } else {
+                values[slot] = value;
             }
-            return null; // not found
         }
 
-        static final Scope GLOBAL = new Scope(null, true, true);
-
-        static {
-            GLOBAL.define("clock", Token.Special("<fun clock>"), LoxNative.clock, Symbol.Type.FUN, true);
-            GLOBAL.define("lineSeparator", Token.Special("<fun lineSeparator>"), LoxNative.lineSeparator, Symbol.Type.FUN, true);
-            GLOBAL.define("exit", Token.Special("<fun exit>"), LoxNative.exit, Symbol.Type.FUN, true);
+        /**
+         * @return the cell of a variable, boxing it in place when not captured yet
+         */
+        Cell cell(int slot) {
+            // The predefined values are read only, and shared by the environments running in parallel
+            if (this == GLOBAL) return new Cell(values[slot]);
+            if (slot >= values.length) grow(slot);
+            if (values[slot] instanceof Cell cell) return cell;
+            var cell = new Cell(values[slot]);
+            values[slot] = cell;
+            return cell;
+        }
 
-            GLOBAL.define(LoxString.instance.name, LoxString.instance.classStmt.name, LoxString.instance, Symbol.Type.CLASS, true);
+        private void grow(int slot) {
+            int length = values.length;
+            values = Arrays.copyOf(values, Math.max(slot + 1, length * 2));
+            Arrays.fill(values, length, values.length, UNDEFINED);
         }
+
+        static final Scope GLOBAL = new Scope(null, SymbolTable.predefinedValues());
     }
 }
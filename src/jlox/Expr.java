@@ -11,6 +11,8 @@ abstract class Expr {
     R visitCallExpr(Call call);
     R visitGetExpr(Get get);
     R visitGroupingExpr(Grouping grouping);
+    R visitInlineExpr(Inline inline);
+    R visitInvariantExpr(Invariant invariant);
     R visitLambdaExpr(Lambda lambda);
     R visitLiteralExpr(Literal literal);
     R visitSetExpr(Set set);
@@ -26,6 +28,8 @@ abstract class Expr {
     void visitCallExpr(Call call);
     void visitGetExpr(Get get);
     void visitGroupingExpr(Grouping grouping);
+    void visitInlineExpr(Inline inline);
+    void visitInvariantExpr(Invariant invariant);
     void visitLambdaExpr(Lambda lambda);
     void visitLiteralExpr(Literal literal);
     void visitSetExpr(Set set);
@@ -46,6 +50,10 @@ abstract class Expr {
     void leaveGetExpr(Get get);
     void enterGroupingExpr(Grouping grouping);
     void leaveGroupingExpr(Grouping grouping);
+    void enterInlineExpr(Inline inline);
+    void leaveInlineExpr(Inline inline);
+    void enterInvariantExpr(Invariant invariant);
+    void leaveInvariantExpr(Invariant invariant);
     void enterLambdaExpr(Lambda lambda);
     void leaveLambdaExpr(Lambda lambda);
     void enterLiteralExpr(Literal literal);
@@ -66,8 +74,10 @@ abstract class Expr {
   static class Assign extends Expr {
 
     final Token name;
-    final Expr value;
+    Expr value;
     /** target is the variable token where declared */ Token target = null;
+    /** scopes to go up to reach the target */ int hops = -1;
+    /** index of the target in its scope */ int slot = -1;
 
     Assign ( Token name, Expr value ) {
       this.name = name;
@@ -96,9 +106,10 @@ abstract class Expr {
   }
   static class Binary extends Expr {
 
-    final Expr left;
+    Expr left;
     final Token operator;
-    final Expr right;
+    Expr right;
+    /** operand types seen so far by the Interpreter */ Interpreter.Feedback feedback = Interpreter.Feedback.NONE;
 
     Binary ( Expr left, Token operator, Expr right ) {
       this.left = left;
@@ -128,10 +139,11 @@ abstract class Expr {
   }
   static class Call extends Expr {
 
-    final Expr callee;
+    Expr callee;
     final Token leftPar;
     final List<Expr> arguments;
     final Token rightPar;
+    /** cache of the method when the callee is a property */ InlineCache cache = new InlineCache();
 
     Call ( Expr callee, Token leftPar, List<Expr> arguments, Token rightPar ) {
       this.callee = callee;
@@ -162,8 +174,9 @@ abstract class Expr {
   }
   static class Get extends Expr {
 
-    final Expr object;
+    Expr object;
     final Token name;
+    /** cache of the property lookup */ InlineCache cache = new InlineCache();
 
     Get ( Expr object, Token name ) {
       this.object = object;
@@ -192,7 +205,7 @@ abstract class Expr {
   }
   static class Grouping extends Expr {
 
-    final Expr expression;
+    Expr expression;
 
     Grouping ( Expr expression ) {
       this.expression = expression;
@@ -218,10 +231,77 @@ abstract class Expr {
         return visitor.visitGroupingExpr(this);
     }
   }
+  static class Inline extends Expr {
+
+    final Call call;
+    final List<Token> parameters;
+    final Expr body;
+    /** index of the first parameter in the scope of the call */ int slot = -1;
+
+    Inline ( Call call, List<Token> parameters, Expr body ) {
+      this.call = call;
+      this.parameters = parameters;
+      this.body = body;
+    }
+
+    @Override
+    void voidVisit(VoidVisitor visitor) {
+        visitor.visitInlineExpr(this);
+    }
+
+    @Override
+    void enter(WalkVisitor visitor) {
+        visitor.enterInlineExpr(this);
+    }
+
+    @Override
+    void leave(WalkVisitor visitor) {
+        visitor.leaveInlineExpr(this);
+    }
+
+    @Override
+    <R> R visit(Visitor<R> visitor) {
+        return visitor.visitInlineExpr(this);
+    }
+  }
+  static class Invariant extends Expr {
+
+    final Expr expression;
+    /** index of the value in the cache of its loop */ int slot = -1;
+    /** loops with a cache between the expression and its loop */ int hops = -1;
+
+    Invariant ( Expr expression ) {
+      this.expression = expression;
+    }
+
+    @Override
+    void voidVisit(VoidVisitor visitor) {
+        visitor.visitInvariantExpr(this);
+    }
+
+    @Override
+    void enter(WalkVisitor visitor) {
+        visitor.enterInvariantExpr(this);
+    }
+
+    @Override
+    void leave(WalkVisitor visitor) {
+        visitor.leaveInvariantExpr(this);
+    }
+
+    @Override
+    <R> R visit(Visitor<R> visitor) {
+        return visitor.visitInvariantExpr(this);
+    }
+  }
   static class Lambda extends Expr {
 
     final List<Token> parameters;
     final Stmt body;
+    /** body compiled by the ClosureCompiler (null if not compiled) */ ClosureCompiler.Eval code = null;
+    /** number of slots of the function scope (parameters and locals) */ int locals = 0;
+    /** free variables of the body in the scope creating the closure (null to capture the whole scope chain) */ List<Environment.Capture> captures = null;
+    /** the closure when it captures nothing (created once) */ LoxCallable.Lambda shared = null;
 
     Lambda ( List<Token> parameters, Stmt body ) {
       this.parameters = parameters;
@@ -278,9 +358,10 @@ abstract class Expr {
   }
   static class Set extends Expr {
 
-    final Expr object;
+    Expr object;
     final Token name;
-    final Expr value;
+    Expr value;
+    /** cache of the field store */ InlineCache cache = new InlineCache();
 
     Set ( Expr object, Token name, Expr value ) {
       this.object = object;
@@ -314,6 +395,10 @@ abstract class Expr {
     final Token method;
     final Token explicitSuperclass;
     /** target is the class (name token where declared) that contains the super keyword */ Token targetClass = null;
+    /** scopes to go up to reach self */ int hops = -1;
+    /** index of self in its scope */ int slot = -1;
+    /** class of self when the method was resolved */ LoxClass selfClass = null;
+    /** method resolved for selfClass */ LoxCallable.Method resolved = null;
 
     Super ( Token keyword, Token method, Token explicitSuperclass ) {
       this.keyword = keyword;
@@ -343,11 +428,11 @@ abstract class Expr {
   }
   static class Ternary extends Expr {
 
-    final Expr left;
+    Expr left;
     final Token leftOp;
-    final Expr middle;
+    Expr middle;
     final Token rightOp;
-    final Expr right;
+    Expr right;
 
     Ternary ( Expr left, Token leftOp, Expr middle, Token rightOp, Expr right ) {
       this.left = left;
@@ -379,7 +464,7 @@ abstract class Expr {
   }
   static class TypeCheck extends Expr {
 
-    final Expr value;
+    Expr value;
     final Class<?> type;
     final Token name;
 
@@ -412,7 +497,7 @@ abstract class Expr {
   static class Unary extends Expr {
 
     final Token operator;
-    final Expr right;
+    Expr right;
 
     Unary ( Token operator, Expr right ) {
       this.operator = operator;
@@ -443,6 +528,9 @@ abstract class Expr {
 
     final Token name;
     /** target is the variable token where declared */ Token target = null;
+    /** scopes to go up to reach the target */ int hops = -1;
+    /** index of the target in its scope */ int slot = -1;
+    /** whether the target may hold no value when read (uninitialized or not defined at top level) */ boolean checked = false;
 
     Variable ( Token name ) {
       this.name = name;
@@ -0,0 +1,84 @@
+package jlox;
+
+/**
+ * Polymorphic inline cache of a property site (Expr.Get, Expr.Set, Expr.Call on a property),
+ * keyed by the shape of the receiver: the shape determines both the class and the field layout.
+ * Shapes and classes are immutable once created, so entries never need invalidation.
+ * After MAX_ENTRIES receiver shapes the site is megamorphic and falls back to the full lookup.
+ */
+class InlineCache {
+    private static final int MAX_ENTRIES = 4;
+
+    private final Shape[] shapes = new Shape[MAX_ENTRIES];
+    /** index of the field, -1 for a method */
+    private final int[] indexes = new int[MAX_ENTRIES];
+    /** the method (get and call sites) or the shape after the store (set sites) */
+    private final Object[] targets = new Object[MAX_ENTRIES];
+    private int count = 0;
+
+    private int find(Shape shape) {
+        for (int i = 0; i < count; i++) {
+            if (shapes[i] == shape) return i;
+        }
+        return -1;
+    }
+
+    private void add(Shape shape, int index, Object target) {
+        if (count == MAX_ENTRIES) return;
+        shapes[count] = shape;
+        indexes[count] = index;
+        targets[count] = target;
+        count++;
+    }
+
+    /**
+     * Same as LoxInstance.get.
+     */
+    Object get(LoxInstance instance, Token name) {
+        var shape = instance.shape();
+        int entry = find(shape);
+        if (entry < 0) {
+            int index = shape.indexOf(name.lexeme());
+            var method = index >= 0 ? null : instance.klass.findMethod(name.lexeme(), false);
+            if (index < 0 && method == null) return instance.get(name);
+            add(shape, index, method);
+            return index >= 0 ? instance.field(index) : method.bind(instance);
+        }
+        int index = indexes[entry];
+        return index >= 0 ? instance.field(index) : ((LoxCallable.Method) targets[entry]).bind(instance);
+    }
+
+    /**
+     * Same as LoxInstance.set.
+     */
+    Object set(LoxInstance instance, Token name, Object value) {
+        var shape = instance.shape();
+        int entry = find(shape);
+        if (entry < 0) {
+            instance.set(name, value);
+            add(shape, instance.shape().indexOf(name.lexeme()), instance.shape());
+        } else {
+            instance.store((Shape) targets[entry], indexes[entry], value);
+        }
+        return value;
+    }
+
+    /**
+     * The method called by 'instance.name(...)', with its arity checked when cached.
+     * @return null when the property is a field or a property function: the call is not cached
+     */
+    LoxCallable.Method method(LoxInstance instance, Token name, Token leftPar, int argumentCount) {
+        var shape = instance.shape();
+        int entry = find(shape);
+        if (entry >= 0) return (LoxCallable.Method) targets[entry];
+        if (shape.indexOf(name.lexeme()) >= 0) {
+            add(shape, 0, null);
+            return null;
+        }
+        var method = instance.klass.findMethod(name.lexeme(), false);
+        if (method == null || method.isProperty()) return null;
+        Interpreter.callable(method, leftPar, argumentCount);
+        add(shape, -1, method);
+        return method;
+    }
+}
@@ -1,12 +1,12 @@
 package jlox;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.function.Supplier;
 
-public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
+public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Interpreter.Completion> {
 
     static class TypeMismatchError extends LoxError {
         public TypeMismatchError(Token token, Class<?> expected, Object given) {
@@ -15,51 +15,61 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         public TypeMismatchError(Token token, Class<?> expected, Object given, String moreInfo) {
             super(token, "Type mismatch. Expected '%s' but got '%s'. %s"
                     .formatted(expected.getSimpleName(),
-                            // TODO translate java types to lox types names
-                            (given == null ? Void.class : given.getClass()).getSimpleName(), moreInfo));
+                            typeName(given), moreInfo));
         }
     }
 
-    static class BreakException extends LoxError {
-        public BreakException(Token token) {
-            super(token);
-        }
-    }
+    /**
+     * Thrown by the native exit: the script stops there, the host carries on (see Stdio.getExitCode).
+     */
+    static class Exit extends LoxError {
+        final int code;
 
-    static class ContinueException extends LoxError {
-        public ContinueException(Token token) {
-            super(token);
+        Exit(Token token, int code) {
+            super(token, "exit");
+            this.code = code;
         }
     }
 
-    static class ReturnException extends LoxError {
+    /**
+     * How a statement completed. Anything but NORMAL unwinds the enclosing statements
+     * up to the loop (BREAK, CONTINUE) or the function call (RETURN) handling it.
+     * The value of a RETURN is kept aside, see {@link #takeReturnValue()}.
+     */
+    enum Completion { NORMAL, BREAK, CONTINUE, RETURN }
 
-        final Object value;
-        public ReturnException(Token token, Object value) {
-            super(token);
-            this.value = value;
-        }
-    }
+    /**
+     * Operand types seen by a binary expression. The first evaluation specialises the node
+     * to NUMBERS or STRINGS, and the first mismatch deoptimises it to GENERIC for good.
+     */
+    enum Feedback { NONE, NUMBERS, STRINGS, GENERIC }
 
-    static class Lazy {
-        private static final Object Uninitialized = new Object();
-        private final Supplier<Object> supplier;
-        private Object value = Uninitialized;
-
-        Lazy(Supplier<Object> supplier) {
-            this.supplier = supplier;
-        }
-
-        Object get() {
-            if (value == Uninitialized)
-                value = supplier.get();
-            return value;
-        }
-    }
 
+    /** Default maximum depth of nested calls. */
+    static final int DEFAULT_MAX_DEPTH = 2048;
+    /** Steps taken from the budget at once, between two checks of the cancellation (see step). */
+    private static final int SLICE = 1024;
+    /** Value returned by a function whose return is a tail call (see invoke). */
+    private static final Object TAIL_CALL = new Object();
 
     public Stdio stdio = null;
     public final Environment environment = new Environment();
+    private Object returnValue = null;
+    /** Calls nested deeper than this fail with a "Stack overflow." error. */
+    int maxDepth = DEFAULT_MAX_DEPTH;
+    private int depth = 0;
+    /** steps left before the next check, then taken from the budget */
+    private int slice = 0;
+    private long budget = Long.MAX_VALUE;
+    /** set by another thread, the running script stops at its next check */
+    private volatile boolean cancelled = false;
+    private LoxCallable tailFunction = null;
+    private LoxInstance tailSelf = null;
+    private Token tailLeftPar = null;
+    private Object[] tailArguments = null;
+    /** invariant values of the running loops, computed on first use (see WalkInvariant) */
+    private Object[][] loopCaches = new Object[16][];
+    private int loopCount = 0;
 
 
     public void interpret(List<Stmt> statements, Stdio stdio) {
@@ -68,6 +78,8 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             for (var stmt: statements) {
                 execute(stmt);
             }
+        } catch (Exit exit) {
+            stdio.exit(exit.code);
         } catch (LoxError error) {
             stdio.errorAtToken(error.token, error.getMessage());
         }
@@ -75,252 +87,496 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     public void reset() {
         stdio = null;
+        returnValue = null;
+        depth = 0;
+        loopCount = 0;
         environment.reset();
     }
 
-    @Override
-    public Void visitBlockStmt(Stmt.Block block) {
-        executeBlock(block.statements);
-        return null;
+    /**
+     * @return the value of the last RETURN completion, and forget it.
+     */
+    Object takeReturnValue() {
+        var value = returnValue;
+        returnValue = null;
+        return value;
     }
 
     @Override
-    public Void visitForBlockStmt(Stmt.ForBlock stmt) {
+    public Completion visitBlockStmt(Stmt.Block block) {
+        if (!block.scoped)
+            return executeBlock(block.statements);
+        environment.push();
         try {
-            execute(stmt.body);
-        } catch (ContinueException Ignored) {
-            // continue;
+            return executeBlock(block.statements);
+        } finally {
+            environment.pop();
         }
-        execute(stmt.updater);
-        return null;
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class klass) {
-        Map<String, LoxCallable> classMethods = new HashMap<>();
+    public Completion visitForBlockStmt(Stmt.ForBlock stmt) {
+        var completion = execute(stmt.body);
+        if (completion == Completion.BREAK || completion == Completion.RETURN)
+            return completion;
+        return execute(stmt.updater);
+    }
+
+    @Override
+    public Completion visitClassStmt(Stmt.Class klass) {
         List<LoxClass> superclasses = new ArrayList<>();
+        environment.define(klass.slot, Environment.UNINITIALIZED);
+        // Superclasses are resolved from within the class scope (see WalkSymbol), so we push it first.
+        environment.push();
         for (var superclass : klass.superclasses) {
            superclasses.add(
                    downcast(evaluate(superclass), LoxClass.class, "class", superclass.name, "superclass"));
         }
-        environment.push(true);
-        var scoping = environment.getScoping();
+        defineClass(klass, superclasses);
+        return Completion.NORMAL;
+    }
+
+    /**
+     * Define the class in the enclosing scope, where it is defined uninitialized already, so that the methods
+     * can capture it. The class scope must have been pushed already.
+     */
+    void defineClass(Stmt.Class klass, List<LoxClass> superclasses) {
+        Map<String, LoxCallable> classMethods = new HashMap<>();
         for (var method : klass.classMethods) {
-            var classMethod = new LoxCallable.LoxFunction(method, scoping);
-            classMethods.put(method.name.lexeme(), classMethod);
-            environment.defineSymbol(method.name, classMethod, Symbol.Type.FUN, true);
+            classMethods.put(method.name.lexeme(), defineFunction(method));
         }
+        var loxClass = new LoxClass(klass.name.lexeme(), superclasses, classMethods, klass,
+                (method, parent) -> new LoxCallable.Method(method, environment.capture(method.captures), parent));
         environment.pop();
-        var loxClass = new LoxClass(klass.name.lexeme(), superclasses, classMethods, klass, scoping);
-        environment.defineSymbol(klass.name, loxClass, Symbol.Type.CLASS, true);
-        return null;
+        environment.set(0, klass.slot, loxClass);
     }
 
     @Override
-    public Void visitMethodsStmt(Stmt.Methods stmt) {
-        return null;
+    public Completion visitMethodsStmt(Stmt.Methods stmt) {
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Completion visitExpressionStmt(Stmt.Expression stmt) {
         evaluate(stmt.expression);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
-        var function = new LoxCallable.LoxFunction(stmt, environment.getScoping());
-        environment.defineSymbol(stmt.name, function, Symbol.Type.FUN, true);
-        return null;
+    public Completion visitFunctionStmt(Stmt.Function stmt) {
+        defineFunction(stmt);
+        return Completion.NORMAL;
+    }
+
+    /**
+     * Define the function in the current scope. It is defined uninitialized before the closure is created,
+     * so that a recursive function can capture itself.
+     */
+    LoxCallable.LoxFunction defineFunction(Stmt.Function stmt) {
+        var function = stmt.shared;
+        if (function == null) {
+            environment.define(stmt.slot, Environment.UNINITIALIZED);
+            function = new LoxCallable.LoxFunction(stmt, environment.capture(stmt.captures));
+            if (stmt.captures != null && stmt.captures.isEmpty()) stmt.shared = function;
+        }
+        environment.set(0, stmt.slot, function);
+        return function;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
+    public Completion visitIfStmt(Stmt.If stmt) {
         if (isTruthy(evaluate(stmt.condition)))
-            execute(stmt.then);
-        else if (stmt.else_ != null)
-            execute(stmt.else_);
-        return null;
+            return execute(stmt.then);
+        else
+            return execute(stmt.else_);
     }
 
     @Override
-    public Void visitKeywordStmt(Stmt.Keyword stmt) {
-        switch (stmt.keyword.type()) {
-            // NB Exceptions are slow, and they could be triggered outside the body of a loop, e.g. a sub function.
-            case BREAK -> throw new BreakException(stmt.keyword);
-            case CONTINUE -> throw new ContinueException(stmt.keyword);
+    public Completion visitKeywordStmt(Stmt.Keyword stmt) {
+        return switch (stmt.keyword.type()) {
+            // Static analysis guarantees there is an enclosing loop in the same function.
+            case BREAK -> Completion.BREAK;
+            case CONTINUE -> Completion.CONTINUE;
             default -> throw new IllegalStateException("Unexpected value: " + stmt.keyword.lexeme());
-        }
-        // return null;
+        };
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
+    public Completion visitPrintStmt(Stmt.Print stmt) {
         Object result = evaluate(stmt.expression);
         stdio.print(result);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
-        throw new ReturnException(stmt.keyword, stmt.value == null ? null : evaluate(stmt.value));
+    public Completion visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value instanceof Expr.Call call)
+            return returnWith(call(call, true));
+        return returnWith(stmt.value == null ? null : evaluate(stmt.value));
+    }
+
+    Completion returnWith(Object value) {
+        returnValue = value;
+        return Completion.RETURN;
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
-        if (stmt.initializer == null) {
-            environment.defineUninitializedVariable(stmt.name);
-        } else {
-            environment.defineSymbol(stmt.name, evaluate(stmt.initializer), Symbol.Type.VAR, stmt.isReadonly);
-        }
-        return null;
+    public Completion visitVarStmt(Stmt.Var stmt) {
+        environment.define(stmt.slot, stmt.initializer == null ? Environment.UNINITIALIZED : evaluate(stmt.initializer));
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
+    public Completion visitWhileStmt(Stmt.While stmt) {
+        if (stmt.invariants == 0) return loop(stmt);
+        enterLoop(stmt.invariants);
+        try {
+            return loop(stmt);
+        } finally {
+            leaveLoop();
+        }
+    }
 
+    private Completion loop(Stmt.While stmt) {
         while (isTruthy(evaluate(stmt.condition))) {
-            try {
-                execute(stmt.body);
-            } catch (BreakException Ignored) {
-                break;
-            } catch (ContinueException Ignored) {
-                // continue;
-            }
+            step(stmt.keyword);
+            var completion = execute(stmt.body);
+            if (completion == Completion.BREAK) break;
+            if (completion == Completion.RETURN) return completion;
+            // NORMAL or CONTINUE: next iteration
         }
 
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitLastStmt(Stmt.Last stmt) {
+    public Completion visitLastStmt(Stmt.Last stmt) {
         Object result = evaluate(stmt.expression);
         stdio.print(result);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object result = evaluate(expr.value);
-        environment.assignSymbol(expr.name, result, expr.target);
+        environment.set(expr.hops, expr.slot, result);
         return result;
     }
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
+        return switch (expr.feedback) {
+            case NUMBERS -> visitBinaryNumbers(expr);
+            case STRINGS -> visitBinaryStrings(expr);
+            default -> visitBinaryGeneric(expr);
+        };
+    }
+
+    /**
+     * Specialised to two numbers.
+     */
+    private Object visitBinaryNumbers(Expr.Binary expr) {
         var left = evaluate(expr.left);
-        var right = new Lazy(() -> evaluate(expr.right));
+        if (left instanceof Double l) {
+            var right = evaluate(expr.right);
+            if (right instanceof Double r)
+                return numbers(expr.operator, l, r);
+            expr.feedback = Feedback.GENERIC;
+            return visitBinaryNumber(l, expr.operator, right);
+        }
+        expr.feedback = Feedback.GENERIC;
+        return visitBinaryOperands(expr, left);
+    }
 
+    /**
+     * Specialised to a string on the left: concatenation or comparison.
+     */
+    private Object visitBinaryStrings(Expr.Binary expr) {
+        var left = evaluate(expr.left);
+        if (left instanceof String s)
+            return visitBinaryString(s, expr.operator, evaluate(expr.right));
+        expr.feedback = Feedback.GENERIC;
+        return visitBinaryOperands(expr, left);
+    }
+
+    private Object visitBinaryGeneric(Expr.Binary expr) {
+        var left = evaluate(expr.left);
+
+        // The right operand is evaluated where needed, without allocating a closure.
         return switch (expr.operator.type()) {
-            case AND -> isTruthy(left) ? right.get() : left;
-            case BANG_EQUAL -> !areEqual(left, right.get());
-            case COMMA -> right.get();
-            case EQUAL_EQUAL -> areEqual(left, right.get());
-            case OR -> isTruthy(left) ? left : right.get();
-            default -> {
-                if (left instanceof Double d)
-                    yield visitBinaryNumber(d, expr.operator, expr.right);
-                if (left instanceof String s)
-                    yield visitBinaryString(s, expr.operator, expr.right);
-                throw new LoxError(expr.operator,
-                        "Binary operator '%s' is not applicable to a left operand of type %s."
-                                .formatted(expr.operator.lexeme(), left.getClass().getSimpleName()));
-            }
+            case AND -> isTruthy(left) ? evaluate(expr.right) : left;
+            case BANG_EQUAL -> !areEqual(left, evaluate(expr.right));
+            case COMMA -> evaluate(expr.right);
+            case EQUAL_EQUAL -> areEqual(left, evaluate(expr.right));
+            case OR -> isTruthy(left) ? left : evaluate(expr.right);
+            default -> visitBinaryOperands(expr, left);
         };
     }
 
-    private Object visitBinaryNumber(Double left, Token operator, Expr rightExpr) {
+    /**
+     * Arithmetic and comparison, dispatched on the type of the left operand.
+     * The first evaluation records the operand types (see {@link Feedback}).
+     */
+    private Object visitBinaryOperands(Expr.Binary expr, Object left) {
+        var operator = expr.operator;
+        if (left instanceof Double d) {
+            var right = evaluate(expr.right);
+            if (expr.feedback == Feedback.NONE)
+                expr.feedback = right instanceof Double ? Feedback.NUMBERS : Feedback.GENERIC;
+            return visitBinaryNumber(d, operator, right);
+        }
+        if (left instanceof String s && isStringOperator(operator)) {
+            var right = evaluate(expr.right);
+            if (expr.feedback == Feedback.NONE)
+                expr.feedback = right instanceof String || operator.type() == TokenType.PLUS
+                        ? Feedback.STRINGS : Feedback.GENERIC;
+            return visitBinaryString(s, operator, right);
+        }
+        expr.feedback = Feedback.GENERIC;
+        throw notApplicable(operator, left);
+    }
+
+    static LoxError notApplicable(Token operator, Object left) {
+        return new LoxError(operator,
+                "Binary operator '%s' is not applicable to a left operand of type %s."
+                        .formatted(operator.lexeme(), typeName(left)));
+    }
+
+    static String typeName(Object value) {
+        // the bytecode engine has its own runtime types, report them as their tree-walker twins
+        if (value instanceof VM.Closure closure)
+            return closure.proto.kind == Bytecode.Kind.LAMBDA ? "Lambda" : "LoxFunction";
+        if (value instanceof VM.BoundMethod) return "BoundedMethod";
+        // TODO translate java types to lox types names
+        return (value == null ? Void.class : value.getClass()).getSimpleName();
+    }
+
+    private static boolean isStringOperator(Token operator) {
+        return switch (operator.type()) {
+            case GREATER, GREATER_EQUAL, LESS, LESS_EQUAL, PLUS -> true;
+            default -> false;
+        };
+    }
 
-        Supplier<Double> rightNumber =
-                () -> number(evaluate(rightExpr), operator, "right operand");
+    private static Object visitBinaryNumber(double left, Token operator, Object right) {
+        if (operator.type() == TokenType.PLUS && !(right instanceof Double)) {
+            if (right instanceof String str)
+                return Stdio.stringify(left) + str;
+            throw new LoxError(operator,
+                    "Number cannot be added with %s.".formatted(typeName(right)));
+        }
+        return numbers(operator, left, number(right, operator, "right operand"));
+    }
 
+    private static Object numbers(Token operator, double left, double right) {
         return switch(operator.type()) {
-            case GREATER -> left > rightNumber.get();
-            case GREATER_EQUAL -> left >= rightNumber.get();
-            case LESS -> left < rightNumber.get();
-            case LESS_EQUAL -> left <= rightNumber.get();
-            case MINUS -> left - rightNumber.get();
+            case GREATER -> left > right;
+            case GREATER_EQUAL -> left >= right;
+            case LESS -> left < right;
+            case LESS_EQUAL -> left <= right;
+            case MINUS -> left - right;
             case PERCENT -> {
-                double divisor = rightNumber.get();
-                if (divisor == 0)
+                if (right == 0)
                     throw new LoxError(operator, "Division by zero.");
-                yield left % divisor;
-            }
-            case PLUS -> {
-                Object right = evaluate(rightExpr);
-                if (right instanceof Double num )
-                    yield left + num;
-                if (right instanceof String str)
-                    yield Stdio.stringify(left) + str;
-                throw new LoxError(operator,
-                        "Number cannot be added with %s.".formatted(right.getClass().getSimpleName()));
+                yield left % right;
             }
+            case PLUS -> left + right;
             case SLASH -> {
                 // Challenge 7.3
-                double divisor = rightNumber.get();
-                if (divisor == 0)
+                if (right == 0)
                     throw new LoxError(operator, "Division by zero.");
-                yield left / divisor;
+                yield left / right;
             }
-            case STAR -> left * rightNumber.get();
-            case STAR_STAR -> Math.pow(left, rightNumber.get());
+            case STAR -> left * right;
+            case STAR_STAR -> Math.pow(left, right);
 
-            default -> throw new LoxError(operator,
-                    "Binary operator '%s' is not applicable to a left operand of type Number.");
+            default -> throw notApplicable(operator, left);
         };
     }
 
-    private Object visitBinaryString(String left, Token operator, Expr rightExpr) {
-
-        Supplier<String> rightString =
-                () -> downcast(evaluate(rightExpr), String.class, "string", operator, "right operand");
+    private static Object visitBinaryString(String left, Token operator, Object right) {
+        if (operator.type() == TokenType.PLUS)
+            return left + Stdio.stringify(right);
 
+        var rightString = downcast(right, String.class, "string", operator, "right operand");
         return switch(operator.type()) {
-            case GREATER -> left.compareTo(rightString.get()) > 0;
-            case GREATER_EQUAL -> left.compareTo(rightString.get()) >= 0;
-            case LESS -> left.compareTo(rightString.get()) < 0;
-            case LESS_EQUAL -> left.compareTo(rightString.get()) <= 0;
-            case PLUS -> left + Stdio.stringify(evaluate(rightExpr));
-
-            default -> throw new LoxError(operator,
-                        "Binary operator '%s' is not applicable to a left operand of type String.");
+            case GREATER -> left.compareTo(rightString) > 0;
+            case GREATER_EQUAL -> left.compareTo(rightString) >= 0;
+            case LESS -> left.compareTo(rightString) < 0;
+            case LESS_EQUAL -> left.compareTo(rightString) <= 0;
+
+            default -> throw notApplicable(operator, left);
         };
     }
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.callee);
-        if (callee instanceof  LoxCallable function) {
-            // Check arity
-            if (function.arity() != expr.arguments.size()) {
-                throw new LoxError(expr.leftPar,
-                        "Call expect %d arguments, but got %d.".formatted(function.arity(), expr.arguments.size()));
+        return call(expr, false);
+    }
+
+    /**
+     * @param tail the call is the value of a return, left pending for the caller (see complete)
+     */
+    private Object call(Expr.Call expr, boolean tail) {
+        if (expr.callee instanceof Expr.Super superExpr) {
+            // 'super.name(...)': the resolved method is called with self, without binding it
+            var self = self(superExpr);
+            var method = self.superMethod(superExpr);
+            callable(method, expr.leftPar, expr.arguments.size());
+            return invoke(method, self, expr.leftPar, arguments(expr), tail);
+        }
+        if (expr.callee instanceof Expr.Get get) {
+            // Method call 'instance.name(...)': through the call site cache, without binding the method
+            var object = evaluate(get.object);
+            if (object instanceof LoxInstance instance) {
+                var method = expr.cache.method(instance, get.name, expr.leftPar, expr.arguments.size());
+                if (method != null) return invoke(method, instance, expr.leftPar, arguments(expr), tail);
             }
-            // Evaluate arguments
-            List<Object> arguments = new ArrayList<>();
-            for (var arg : expr.arguments) {
-                arguments.add(evaluate(arg));
+            var function = callable(getProperty(object, get), expr.leftPar, expr.arguments.size());
+            return invoke(function, null, expr.leftPar, arguments(expr), tail);
+        }
+        LoxCallable function = callable(evaluate(expr.callee), expr.leftPar, expr.arguments.size());
+        return invoke(function, null, expr.leftPar, arguments(expr), tail);
+    }
+
+    /**
+     * Call a function, or a method with self when self is not null.
+     * A tail call is not made but left pending: the caller completes it once the current call is unwound,
+     * so that tail recursion runs in constant stack.
+     */
+    Object invoke(LoxCallable function, LoxInstance self, Token leftPar, Object[] arguments, boolean tail) {
+        if (tail) {
+            tailFunction = function;
+            tailSelf = self;
+            tailLeftPar = leftPar;
+            tailArguments = arguments;
+            return TAIL_CALL;
+        }
+        return self == null
+                ? function.call(this, leftPar, arguments)
+                : ((LoxCallable.Method) function).call(this, self, leftPar, arguments);
+    }
+
+    /**
+     * Make the calls left pending by tail calls, until one returns a value.
+     */
+    Object complete(Object result) {
+        while (result == TAIL_CALL) {
+            var function = tailFunction;
+            var self = tailSelf;
+            var arguments = tailArguments;
+            tailFunction = null;
+            tailSelf = null;
+            tailArguments = null;
+            if (self != null) {
+                result = ((LoxCallable.Method) function).enter(this, self, tailLeftPar, arguments);
+            } else if (function instanceof LoxCallable.Lambda lambda) {
+                result = lambda.enter(this, tailLeftPar, arguments);
+            } else {
+                result = function.call(this, tailLeftPar, arguments);
             }
+        }
+        return result;
+    }
+
+    /**
+     * Account for a call entering a function body.
+     */
+    void enterCall(Token leftPar) {
+        if (depth == maxDepth)
+            throw new LoxError(leftPar, "Stack overflow.");
+        step(leftPar);
+        depth++;
+    }
+
+    /**
+     * Account for a step of the script: a loop iteration or a call, whatever the engine.
+     * The steps are counted down by slices, the budget and the cancellation are checked between slices.
+     */
+    void step(Token token) {
+        if (--slice < 0) nextSlice(token);
+    }
+
+    private void nextSlice(Token token) {
+        if (cancelled)
+            throw new LoxError(token, "Script cancelled.");
+        if (budget == 0)
+            throw new LoxError(token, "Step budget exhausted.");
+        int steps = (int) Math.min(SLICE, budget);
+        budget -= steps;
+        slice = steps - 1;
+    }
+
+    /**
+     * Allow that many steps to the next run.
+     */
+    void budget(long steps) {
+        budget = steps;
+        slice = 0;
+    }
 
-            return function.call(this, expr.leftPar, arguments);
+    /**
+     * Stop the running script, and the next ones: may be called from any thread.
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    void leaveCall() {
+        depth--;
+    }
+
+    int callDepth() {
+        return depth;
+    }
+
+    /**
+     * Leave the calls entered above that depth, which compiled code interrupted by an error does not leave.
+     */
+    void unwindCalls(int depth) {
+        this.depth = depth;
+    }
+
+    private Object[] arguments(Expr.Call expr) {
+        var arguments = new Object[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = evaluate(expr.arguments.get(i));
+        }
+        return arguments;
+    }
+
+    /**
+     * Check that the callee can be called with that many arguments.
+     */
+    static LoxCallable callable(Object callee, Token leftPar, int argumentCount) {
+        if (callee instanceof  LoxCallable function) {
+            // Check arity
+            if (function.arity() != argumentCount) {
+                throw new LoxError(leftPar,
+                        "Call expect %d arguments, but got %d.".formatted(function.arity(), argumentCount));
+            }
+            return function;
         }
-        throw new LoxError(expr.leftPar, "Can only call function and classes");
+        throw new LoxError(leftPar, "Can only call function and classes");
     }
 
     @Override
     public Object visitGetExpr(Expr.Get get) {
-        Object object = evaluate(get.object);
+        return getProperty(evaluate(get.object), get);
+    }
+
+    Object getProperty(Object object, Expr.Get get) {
         if (object instanceof LoxInstance instance) {
-            Object value = instance.get(get.name);
+            Object value = get.cache.get(instance, get.name);
             if (value instanceof LoxCallable callable && callable.isProperty()) {
-                return callable.call(this, get.name, new ArrayList<>());
+                return callable.call(this, get.name, LoxCallable.NO_ARGUMENTS);
             }
             return value;
         } else if (object instanceof LoxClass klass) {
             var classMethod = klass.findClassMethod(get.name.lexeme());
             if (classMethod != null) {
                 if (classMethod.isProperty())
-                    return classMethod.call(this, get.name, new ArrayList<>());
+                    return classMethod.call(this, get.name, LoxCallable.NO_ARGUMENTS);
                 return classMethod;
             }
             throw new LoxError(get.name, "Undefined class method.");
@@ -333,7 +589,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 throw new LoxError(get.name, "String class method not applicable to a string instance");
             }
             if (classMethod.arity() == 1 && classMethod.isProperty()) {
-                return classMethod.call(this, get.name, List.of(str));
+                return classMethod.call(this, get.name, new Object[] { str });
             }
             if (classMethod instanceof LoxNative.Native method) {
                 return method.bind(str, get.name);
@@ -348,9 +604,59 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return evaluate(expr.expression);
     }
 
+    /**
+     * The parameters of an inlined call are slots of the current scope (see WalkInline).
+     */
+    @Override
+    public Object visitInlineExpr(Expr.Inline expr) {
+        var arguments = expr.call.arguments;
+        for (int i = 0; i < arguments.size(); i++) {
+            environment.define(expr.slot + i, evaluate(arguments.get(i)));
+        }
+        return evaluate(expr.body);
+    }
+
+    @Override
+    public Object visitInvariantExpr(Expr.Invariant expr) {
+        var cache = loopCache(expr.hops);
+        var value = cache[expr.slot];
+        if (value == null) value = cache[expr.slot] = evaluate(expr.expression);
+        return value;
+    }
+
+    /**
+     * Give a new cache to the invariants of a loop starting.
+     */
+    void enterLoop(int invariants) {
+        if (loopCount == loopCaches.length) loopCaches = Arrays.copyOf(loopCaches, loopCount * 2);
+        loopCaches[loopCount++] = new Object[invariants];
+    }
+
+    void leaveLoop() {
+        loopCaches[--loopCount] = null;
+    }
+
+    /**
+     * @param hops number of running loops with a cache between the invariant and its loop
+     * @return the values of the invariants of the loop, null when not computed yet (or nil)
+     */
+    Object[] loopCache(int hops) {
+        return loopCaches[loopCount - 1 - hops];
+    }
+
     @Override
     public Object visitLambdaExpr(Expr.Lambda lambda) {
-        return new LoxCallable.Lambda(lambda.parameters, lambda.body, environment.getScoping());
+        return closure(lambda);
+    }
+
+    /**
+     * @return a closure of the lambda in the current scope, the same one each time when it captures nothing
+     */
+    LoxCallable.Lambda closure(Expr.Lambda lambda) {
+        if (lambda.shared != null) return lambda.shared;
+        var closure = new LoxCallable.Lambda(lambda.parameters, lambda.body, lambda.code, environment.capture(lambda.captures), lambda.locals);
+        if (lambda.captures != null && lambda.captures.isEmpty()) lambda.shared = closure;
+        return closure;
     }
 
     @Override
@@ -361,35 +667,48 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Object visitSetExpr(Expr.Set set) {
         if (evaluate(set.object) instanceof LoxInstance instance ) {
-            return instance.set(set.name, evaluate(set.value));
+            return set.cache.set(instance, set.name, evaluate(set.value));
         }
         throw new LoxError(set.name, "Left side of '.%s' is not an instance".formatted(set.name.lexeme()));
     }
 
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        var self = (LoxInstance) environment.getSymbol(Token.Special("self")).getValue(expr.keyword);
-        return self.getSuper(expr.method, expr.targetClass, expr.explicitSuperclass != null);
+        return superMethod(expr);
+    }
+
+    Object superMethod(Expr.Super expr) {
+        return self(expr).getSuper(expr);
+    }
+
+    LoxInstance self(Expr.Super expr) {
+        if (expr.hops < 0) throw new LoxError(Token.Special("self"), "Undefined identifier 'self'.");
+        return (LoxInstance) environment.get(expr.hops, expr.slot);
     }
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
         var right = evaluate(expr.right);
 
-        Supplier<Double> rightNumber = () -> number(right, expr.operator, "right operand");
-
         return switch (expr.operator.type()) {
             case BANG -> !isTruthy(right);
-            case MINUS -> - rightNumber.get();
+            case MINUS -> - number(right, expr.operator, "right operand");
             default -> throw new IllegalStateException("Unexpected value: " + expr.operator.type());
         };
     }
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        Object value =  environment.getSymbol(expr.name, expr.target).getValue(expr.name);
+        var value = expr.checked ? environment.get(expr.hops, expr.slot, expr.name) : environment.get(expr.hops, expr.slot);
+        return propertyValue(value, expr);
+    }
+
+    /**
+     * Properties (functions declared with a colon) are called when referenced by name.
+     */
+    Object propertyValue(Object value, Expr.Variable expr) {
         if (value instanceof LoxCallable callable && callable.isProperty()) {
-            return callable.call(this, expr.name, new ArrayList<>());
+            return callable.call(this, expr.name, LoxCallable.NO_ARGUMENTS);
         }
         return value;
     }
@@ -407,48 +726,44 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return value;
     }
 
-    void execute(Stmt stmt) {
+    Completion execute(Stmt stmt) {
         if (stmt != null)
-            stmt.visit(this);
+            return stmt.visit(this);
+        return Completion.NORMAL;
     }
 
-    void executeBlock(List<Stmt> statements) {
-        if (environment.hasNoLocalParameters())
-            environment.push();
-        try {
-            for (var stmt : statements ) {
-                execute(stmt);
-            }
-        } finally {
-            if (environment.hasNoLocalParameters())
-                environment.pop();
+    Completion executeBlock(List<Stmt> statements) {
+        for (var stmt : statements ) {
+            var completion = execute(stmt);
+            if (completion != Completion.NORMAL)
+                return completion;
         }
+        return Completion.NORMAL;
     }
 
     Object evaluate(Expr expr) {
         return expr.visit(this);
     }
 
-    private boolean isTruthy(Object obj) {
+    static boolean isTruthy(Object obj) {
         return obj instanceof Boolean bool ? bool
                 : obj instanceof Double d ? d != 0
                 : obj instanceof String s ? !s.isEmpty()
                 : obj != null;
     }
 
-    private boolean areEqual(Object a, Object b) {
+    static boolean areEqual(Object a, Object b) {
         return a == null && b == null || a != null && a.equals(b);
     }
 
-    static private <T> T downcast(Object value, Class<T> type, String typeName, Token token, String position) {
+    static <T> T downcast(Object value, Class<T> type, String typeName, Token token, String position) {
         if (type.isInstance(value))
             //noinspection unchecked
             return (T) value;
         throw new LoxError(token, position + ": " +  typeName + " expected.");
     }
 
-    @SuppressWarnings("SameParameterValue")
-    static private double number(Object value, Token token, String position) {
+    static double number(Object value, Token token, String position) {
         return downcast(value, Double.class, "number", token, position);
     }
 
@@ -0,0 +1,631 @@
+package jlox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+/**
+ * Last execution tier: a hot function is translated to a JVM class, so that the JIT compiles it
+ * like Java code (primitive doubles in registers, direct recursive calls).
+ * <p>
+ * Only numeric kernels are supported: number parameters, number or boolean locals, arithmetic,
+ * comparisons, if, while, return of a number on every path, and calls to the function itself
+ * (a loop when they are tail calls).
+ * Anything else (globals, closures, strings, instances, print...) keeps the function in the tree walker.
+ * A compiled function is called only when all the arguments are numbers. Its loops and calls
+ * are steps of the interpreter that compiled it (see Interpreter.step), and its calls count in the
+ * call depth of that interpreter like any other.
+ * <p>
+ * The class file is emitted by hand (version 49, no stack map frames needed)
+ * and loaded as a hidden class, which the JVM unloads once the function is gone.
+ */
+class JvmCompiler {
+
+    /** Number of calls of a LoxFunction before it is compiled. */
+    static final int HOT_THRESHOLD = 1000;
+
+    /**
+     * A compiled function, or {@link #NONE} when it cannot be compiled.
+     */
+    static final class Kernel {
+        static final Kernel NONE = new Kernel(null, null);
+
+        private final MethodHandle entry;
+        private final Object[] constants;
+
+        private Kernel(MethodHandle entry, Object[] constants) {
+            this.entry = entry;
+            this.constants = constants;
+        }
+
+        boolean accepts(Object[] arguments) {
+            if (entry == null) return false;
+            for (var argument : arguments) {
+                if (!(argument instanceof Double)) return false;
+            }
+            return true;
+        }
+
+        Object call(Object[] arguments) {
+            try {
+                return (Object) entry.invokeExact(constants, arguments);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /** Thrown when the function uses something the tier does not support. */
+    private static final class Unsupported extends RuntimeException {
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    private enum Type { NUM, BOOL }
+
+    private record Local(int index, Type type) {}
+
+    private static final String CLASS_NAME = "jlox/LoxKernel";
+    private static final String METHOD_NAME = "invoke";
+
+    private final Stmt.Function function;
+    private final Interpreter interpreter;
+    private final String descriptor;
+    private final ClassFile classFile = new ClassFile();
+    private final Code code = new Code();
+    private final Map<Token, Local> locals = new IdentityHashMap<>();
+    private final List<Object> constants = new ArrayList<>();
+    private final Stack<Label[]> loops = new Stack<>(); // {break, continue}
+    private final Label start = new Label();
+    private int nextLocal = 1; // 0 is the constants array
+
+    private JvmCompiler(Stmt.Function function, Interpreter interpreter) {
+        this.function = function;
+        this.interpreter = interpreter;
+        descriptor = "([Ljava/lang/Object;" + "D".repeat(function.parameters.size()) + ")D";
+    }
+
+    /**
+     * @return the compiled function, or Kernel.NONE if it is not a numeric kernel.
+     */
+    static Kernel compile(Stmt.Function function, Interpreter interpreter) {
+        try {
+            var compiler = new JvmCompiler(function, interpreter);
+            var bytes = compiler.classBytes();
+            var lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            var type = MethodType.fromMethodDescriptorString(compiler.descriptor, null);
+            var entry = lookup.findStatic(lookup.lookupClass(), METHOD_NAME, type)
+                    .asSpreader(Object[].class, function.parameters.size())
+                    .asType(MethodType.methodType(Object.class, Object[].class, Object[].class));
+            return new Kernel(entry, compiler.constants.toArray());
+        } catch (Unsupported | ReflectiveOperationException e) {
+            return Kernel.NONE;
+        }
+    }
+
+    /** Called by compiled code on division by zero. */
+    static double divisor(double divisor, Object operator) {
+        if (divisor == 0)
+            throw new LoxError((Token) operator, "Division by zero.");
+        return divisor;
+    }
+
+    /** Called by compiled code at loop back edges and tail calls. */
+    static void step(Object interpreter, Object token) {
+        ((Interpreter) interpreter).step((Token) token);
+    }
+
+    /** Called by compiled code around its calls, see Interpreter.enterCall. */
+    static void enterCall(Object interpreter, Object token) {
+        ((Interpreter) interpreter).enterCall((Token) token);
+    }
+
+    static void leaveCall(Object interpreter) {
+        ((Interpreter) interpreter).leaveCall();
+    }
+
+    private byte[] classBytes() {
+        for (var parameter : function.parameters) {
+            declare(parameter, Type.NUM);
+        }
+        code.place(start);
+        if (function.body instanceof Stmt.Expression expr) {
+            compile(expr.expression, Type.NUM);
+            code.op(Op.DRETURN, -2);
+        } else if (!statement(function.body)) {
+            // May end without returning a number
+            throw new Unsupported();
+        }
+        return classFile.write(code, descriptor, nextLocal);
+    }
+
+    private void declare(Token token, Type type) {
+        if (nextLocal > 250) throw new Unsupported();
+        locals.put(token, new Local(nextLocal, type));
+        nextLocal += type == Type.NUM ? 2 : 1;
+    }
+
+    private void loadConstant(Object value) {
+        constants.add(value);
+        code.op(Op.ALOAD_0, 1);
+        code.op(Op.SIPUSH, 1);
+        code.u2(constants.size() - 1);
+        code.op(Op.AALOAD, -1);
+    }
+
+    private void step(Token token) {
+        loadConstant(interpreter);
+        loadConstant(token);
+        code.op(Op.INVOKESTATIC, -2);
+        code.u2(classFile.methodRef("jlox/JvmCompiler", "step", "(Ljava/lang/Object;Ljava/lang/Object;)V"));
+    }
+
+    // ============ Statements ============
+
+    /**
+     * @return whether the statement always returns.
+     */
+    private boolean statement(Stmt stmt) {
+        if (stmt == null) {
+            return false;
+        } else if (stmt instanceof Stmt.Block block) {
+            for (var statement : block.statements) {
+                // Stop at unreachable code
+                if (statement(statement)) return true;
+                if (statement instanceof Stmt.Keyword) return false;
+            }
+            return false;
+        } else if (stmt instanceof Stmt.Expression expr) {
+            var type = expression(expr.expression);
+            code.op(type == Type.NUM ? Op.POP2 : Op.POP, type == Type.NUM ? -2 : -1);
+            return false;
+        } else if (stmt instanceof Stmt.Var var) {
+            if (var.initializer == null) throw new Unsupported();
+            var type = expression(var.initializer);
+            declare(var.name, type);
+            store(locals.get(var.name));
+            return false;
+        } else if (stmt instanceof Stmt.If ifStmt) {
+            var elseLabel = new Label();
+            var endLabel = new Label();
+            condition(ifStmt.condition, elseLabel);
+            boolean thenReturns = statement(ifStmt.then);
+            if (!thenReturns) code.jump(Op.GOTO, endLabel, 0);
+            code.place(elseLabel);
+            boolean elseReturns = statement(ifStmt.else_);
+            code.place(endLabel);
+            return thenReturns && elseReturns;
+        } else if (stmt instanceof Stmt.While whileStmt) {
+            var startLabel = new Label();
+            var continueLabel = new Label();
+            var endLabel = new Label();
+            code.place(startLabel);
+            condition(whileStmt.condition, endLabel);
+            loops.push(new Label[] { endLabel, continueLabel });
+            if (whileStmt.body instanceof Stmt.ForBlock forBlock) {
+                statement(forBlock.body);
+                code.place(continueLabel);
+                statement(forBlock.updater);
+            } else {
+                statement(whileStmt.body);
+                code.place(continueLabel);
+            }
+            loops.pop();
+            step(whileStmt.keyword);
+            code.jump(Op.GOTO, startLabel, 0);
+            code.place(endLabel);
+            return false;
+        } else if (stmt instanceof Stmt.ForBlock forBlock) {
+            return statement(forBlock.body) || statement(forBlock.updater);
+        } else if (stmt instanceof Stmt.Keyword keyword) {
+            var loop = loops.peek();
+            code.jump(Op.GOTO, keyword.keyword.type() == TokenType.BREAK ? loop[0] : loop[1], 0);
+            return false;
+        } else if (stmt instanceof Stmt.Return returnStmt) {
+            if (returnStmt.value == null) throw new Unsupported();
+            if (isRecursion(returnStmt.value)) {
+                // Tail call: the arguments replace the parameters, then back to the start
+                var arguments = ((Expr.Call) returnStmt.value).arguments;
+                for (var argument : arguments) {
+                    compile(argument, Type.NUM);
+                }
+                for (int i = arguments.size() - 1; i >= 0; i--) {
+                    store(locals.get(function.parameters.get(i)));
+                }
+                step(((Expr.Call) returnStmt.value).leftPar);
+                code.jump(Op.GOTO, start, 0);
+                return true;
+            }
+            compile(returnStmt.value, Type.NUM);
+            code.op(Op.DRETURN, -2);
+            return true;
+        }
+        throw new Unsupported();
+    }
+
+    private void store(Local local) {
+        if (local.type() == Type.NUM) code.op(Op.DSTORE, -2);
+        else code.op(Op.ISTORE, -1);
+        code.u1(local.index());
+    }
+
+    private void load(Local local) {
+        if (local.type() == Type.NUM) code.op(Op.DLOAD, 2);
+        else code.op(Op.ILOAD, 1);
+        code.u1(local.index());
+    }
+
+    /**
+     * Jump to the label when the condition is falsy.
+     */
+    private void condition(Expr expr, Label ifFalse) {
+        truthy(expr);
+        code.jump(Op.IFEQ, ifFalse, -1);
+    }
+
+    /**
+     * Push a non-zero int when the expression is truthy (a non-zero number, or true).
+     */
+    private void truthy(Expr expr) {
+        if (expression(expr) == Type.NUM) {
+            code.op(Op.DCONST_0, 2);
+            code.op(Op.DCMPL, -3);
+        }
+    }
+
+    // ============ Expressions ============
+
+    private void compile(Expr expr, Type expected) {
+        if (expression(expr) != expected) throw new Unsupported();
+    }
+
+    private Type expression(Expr expr) {
+        if (expr instanceof Expr.Literal literal) {
+            if (literal.value instanceof Double d) {
+                if (d == 0 && 1 / d > 0) code.op(Op.DCONST_0, 2);
+                else if (d == 1) code.op(Op.DCONST_1, 2);
+                else {
+                    code.op(Op.LDC2_W, 2);
+                    code.u2(classFile.constantDouble(d));
+                }
+                return Type.NUM;
+            }
+            if (literal.value instanceof Boolean b) {
+                code.op(b ? Op.ICONST_1 : Op.ICONST_0, 1);
+                return Type.BOOL;
+            }
+        } else if (expr instanceof Expr.Grouping grouping) {
+            return expression(grouping.expression);
+        } else if (expr instanceof Expr.Inline inline) {
+            // The parameters become locals
+            var arguments = inline.call.arguments;
+            for (int i = 0; i < arguments.size(); i++) {
+                compile(arguments.get(i), Type.NUM);
+                declare(inline.parameters.get(i), Type.NUM);
+                store(locals.get(inline.parameters.get(i)));
+            }
+            return expression(inline.body);
+        } else if (expr instanceof Expr.Invariant invariant) {
+            // The JIT moves it out of the loop
+            return expression(invariant.expression);
+        } else if (expr instanceof Expr.Variable variable) {
+            var local = locals.get(variable.target);
+            if (local != null) {
+                load(local);
+                return local.type();
+            }
+        } else if (expr instanceof Expr.Assign assign) {
+            var local = locals.get(assign.target);
+            if (local != null) {
+                compile(assign.value, local.type());
+                code.op(local.type() == Type.NUM ? Op.DUP2 : Op.DUP, local.type() == Type.NUM ? 2 : 1);
+                store(local);
+                return local.type();
+            }
+        } else if (expr instanceof Expr.Unary unary) {
+            if (unary.operator.type() == TokenType.MINUS) {
+                compile(unary.right, Type.NUM);
+                code.op(Op.DNEG, 0);
+                return Type.NUM;
+            }
+            truthy(unary.right);
+            var falsy = new Label();
+            code.jump(Op.IFEQ, falsy, -1);
+            materialize(falsy, false);
+            return Type.BOOL;
+        } else if (expr instanceof Expr.Binary binary) {
+            return binary(binary);
+        } else if (expr instanceof Expr.Ternary ternary) {
+            var elseLabel = new Label();
+            var endLabel = new Label();
+            condition(ternary.left, elseLabel);
+            var type = expression(ternary.middle);
+            code.jump(Op.GOTO, endLabel, 0);
+            code.drop(type == Type.NUM ? 2 : 1);
+            code.place(elseLabel);
+            compile(ternary.right, type);
+            code.place(endLabel);
+            return type;
+        } else if (isRecursion(expr)) {
+            var call = (Expr.Call) expr;
+            code.op(Op.ALOAD_0, 1);
+            for (var argument : call.arguments) {
+                compile(argument, Type.NUM);
+            }
+            // The arguments are evaluated before entering the call, as in the interpreter
+            loadConstant(interpreter);
+            loadConstant(call.leftPar);
+            code.op(Op.INVOKESTATIC, -2);
+            code.u2(classFile.methodRef("jlox/JvmCompiler", "enterCall", "(Ljava/lang/Object;Ljava/lang/Object;)V"));
+            code.op(Op.INVOKESTATIC, 2 - 1 - 2 * call.arguments.size());
+            code.u2(classFile.methodRef(CLASS_NAME, METHOD_NAME, descriptor));
+            // An error unwinds the calls at once (see Interpreter.unwindCalls)
+            loadConstant(interpreter);
+            code.op(Op.INVOKESTATIC, -1);
+            code.u2(classFile.methodRef("jlox/JvmCompiler", "leaveCall", "(Ljava/lang/Object;)V"));
+            return Type.NUM;
+        }
+        throw new Unsupported();
+    }
+
+    private boolean isRecursion(Expr expr) {
+        return expr instanceof Expr.Call call && call.callee instanceof Expr.Variable callee
+                && callee.target == function.name && call.arguments.size() == function.parameters.size();
+    }
+
+    private Type binary(Expr.Binary binary) {
+        var op = binary.operator.type();
+        switch (op) {
+            case AND, OR -> {
+                compile(binary.left, Type.BOOL);
+                var end = new Label();
+                code.op(Op.DUP, 1);
+                code.jump(op == TokenType.AND ? Op.IFEQ : Op.IFNE, end, -1);
+                code.op(Op.POP, -1);
+                compile(binary.right, Type.BOOL);
+                code.place(end);
+                return Type.BOOL;
+            }
+            case EQUAL_EQUAL, BANG_EQUAL -> {
+                var type = expression(binary.left);
+                compile(binary.right, type);
+                var different = new Label();
+                if (type == Type.NUM) {
+                    // Same as Double.equals: NaN is equal to itself, 0.0 is not -0.0
+                    code.op(Op.INVOKESTATIC, -3);
+                    code.u2(classFile.methodRef("java/lang/Double", "compare", "(DD)I"));
+                    code.jump(Op.IFNE, different, -1);
+                } else {
+                    code.jump(Op.IF_ICMPNE, different, -2);
+                }
+                materialize(different, op == TokenType.EQUAL_EQUAL);
+                return Type.BOOL;
+            }
+            case GREATER, GREATER_EQUAL, LESS, LESS_EQUAL -> {
+                compile(binary.left, Type.NUM);
+                compile(binary.right, Type.NUM);
+                var falsy = new Label();
+                // NaN compares false: DCMPG gives 1 and DCMPL gives -1
+                switch (op) {
+                    case GREATER -> { code.op(Op.DCMPL, -3); code.jump(Op.IFLE, falsy, -1); }
+                    case GREATER_EQUAL -> { code.op(Op.DCMPL, -3); code.jump(Op.IFLT, falsy, -1); }
+                    case LESS -> { code.op(Op.DCMPG, -3); code.jump(Op.IFGE, falsy, -1); }
+                    default -> { code.op(Op.DCMPG, -3); code.jump(Op.IFGT, falsy, -1); }
+                }
+                materialize(falsy, true);
+                return Type.BOOL;
+            }
+            case PLUS, MINUS, STAR, SLASH, PERCENT, STAR_STAR -> {
+                compile(binary.left, Type.NUM);
+                compile(binary.right, Type.NUM);
+                switch (op) {
+                    case PLUS -> code.op(Op.DADD, -2);
+                    case MINUS -> code.op(Op.DSUB, -2);
+                    case STAR -> code.op(Op.DMUL, -2);
+                    case STAR_STAR -> {
+                        code.op(Op.INVOKESTATIC, -2);
+                        code.u2(classFile.methodRef("java/lang/Math", "pow", "(DD)D"));
+                    }
+                    default -> {
+                        loadConstant(binary.operator);
+                        code.op(Op.INVOKESTATIC, -1);
+                        code.u2(classFile.methodRef("jlox/JvmCompiler", "divisor", "(DLjava/lang/Object;)D"));
+                        code.op(op == TokenType.SLASH ? Op.DDIV : Op.DREM, -2);
+                    }
+                }
+                return Type.NUM;
+            }
+            default -> throw new Unsupported();
+        }
+    }
+
+    /**
+     * Push the boolean for a condition that jumped to the label when it does not hold.
+     */
+    private void materialize(Label notHolding, boolean value) {
+        var end = new Label();
+        code.op(value ? Op.ICONST_1 : Op.ICONST_0, 1);
+        code.jump(Op.GOTO, end, 0);
+        code.drop(1);
+        code.place(notHolding);
+        code.op(value ? Op.ICONST_0 : Op.ICONST_1, 1);
+        code.place(end);
+    }
+
+    // ============ Class file ============
+
+    private static final class Op {
+        static final int ICONST_0 = 0x03, ICONST_1 = 0x04, DCONST_0 = 0x0e, DCONST_1 = 0x0f;
+        static final int SIPUSH = 0x11, LDC2_W = 0x14;
+        static final int ILOAD = 0x15, DLOAD = 0x18, ALOAD_0 = 0x2a, AALOAD = 0x32;
+        static final int ISTORE = 0x36, DSTORE = 0x39;
+        static final int POP = 0x57, POP2 = 0x58, DUP = 0x59, DUP2 = 0x5c;
+        static final int DADD = 0x63, DSUB = 0x67, DMUL = 0x6b, DDIV = 0x6f, DREM = 0x73, DNEG = 0x77;
+        static final int DCMPL = 0x97, DCMPG = 0x98;
+        static final int IFEQ = 0x99, IFNE = 0x9a, IFLT = 0x9b, IFGE = 0x9c, IFGT = 0x9d, IFLE = 0x9e;
+        static final int IF_ICMPNE = 0xa0, GOTO = 0xa7, DRETURN = 0xaf, INVOKESTATIC = 0xb8;
+    }
+
+    private static final class Label {
+        int position = -1;
+        final List<Integer> jumps = new ArrayList<>();
+    }
+
+    /**
+     * Code of a method, tracking the operand stack depth (doubles count twice).
+     */
+    private static final class Code {
+        byte[] bytes = new byte[256];
+        int size = 0;
+        int depth = 0;
+        int maxDepth = 0;
+        private final List<Label> labels = new ArrayList<>();
+
+        void u1(int value) {
+            if (size == bytes.length) bytes = java.util.Arrays.copyOf(bytes, size * 2);
+            bytes[size++] = (byte) value;
+        }
+
+        void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        void op(int opcode, int stackEffect) {
+            u1(opcode);
+            depth += stackEffect;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+
+        /** After an unconditional jump, the values of the branch are not on the stack any more. */
+        void drop(int slots) {
+            depth -= slots;
+        }
+
+        void jump(int opcode, Label label, int stackEffect) {
+            label.jumps.add(size);
+            labels.add(label);
+            op(opcode, stackEffect);
+            u2(0);
+        }
+
+        void place(Label label) {
+            label.position = size;
+        }
+
+        byte[] link() {
+            if (size > 0xffff) throw new Unsupported();
+            for (var label : labels) {
+                for (int jump : label.jumps) {
+                    int offset = label.position - jump;
+                    if (offset != (short) offset) throw new Unsupported();
+                    bytes[jump + 1] = (byte) (offset >> 8);
+                    bytes[jump + 2] = (byte) offset;
+                }
+                label.jumps.clear();
+            }
+            return java.util.Arrays.copyOf(bytes, size);
+        }
+    }
+
+    /**
+     * A class with a single static method.
+     */
+    private static final class ClassFile {
+        private final Bytes pool = new Bytes();
+        private final Map<String, Integer> entries = new HashMap<>();
+        private int poolCount = 1;
+
+        private int entry(String key, int slots, Runnable writer) {
+            var index = entries.get(key);
+            if (index != null) return index;
+            writer.run();
+            entries.put(key, poolCount);
+            poolCount += slots;
+            if (poolCount > 0xffff) throw new Unsupported();
+            return poolCount - slots;
+        }
+
+        int utf8(String value) {
+            return entry("U" + value, 1, () -> {
+                var bytes = value.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+                pool.u1(1);
+                pool.u2(bytes.length);
+                pool.write(bytes);
+            });
+        }
+
+        int classRef(String name) {
+            int nameIndex = utf8(name);
+            return entry("C" + name, 1, () -> { pool.u1(7); pool.u2(nameIndex); });
+        }
+
+        int constantDouble(double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            return entry("D" + bits, 2, () -> { pool.u1(6); pool.u4((int) (bits >>> 32)); pool.u4((int) bits); });
+        }
+
+        int methodRef(String owner, String name, String descriptor) {
+            int classIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            int nameAndType = entry("N" + name + descriptor, 1,
+                    () -> { pool.u1(12); pool.u2(nameIndex); pool.u2(descriptorIndex); });
+            return entry("M" + owner + "." + name + descriptor, 1,
+                    () -> { pool.u1(10); pool.u2(classIndex); pool.u2(nameAndType); });
+        }
+
+        byte[] write(Code code, String descriptor, int maxLocals) {
+            var body = code.link();
+            int thisClass = classRef(CLASS_NAME);
+            int superClass = classRef("java/lang/Object");
+            int methodName = utf8(METHOD_NAME);
+            int methodDescriptor = utf8(descriptor);
+            int codeName = utf8("Code");
+
+            var out = new Bytes();
+            out.u4(0xCAFEBABE);
+            out.u2(0);
+            out.u2(49);
+            out.u2(poolCount);
+            out.write(pool.toArray());
+            out.u2(0x0030); // final super
+            out.u2(thisClass);
+            out.u2(superClass);
+            out.u2(0); // interfaces
+            out.u2(0); // fields
+            out.u2(1); // methods
+            out.u2(0x0009); // public static
+            out.u2(methodName);
+            out.u2(methodDescriptor);
+            out.u2(1);
+            out.u2(codeName);
+            out.u4(12 + body.length);
+            out.u2(code.maxDepth);
+            out.u2(maxLocals);
+            out.u4(body.length);
+            out.write(body);
+            out.u2(0); // exception table
+            out.u2(0); // code attributes
+            out.u2(0); // class attributes
+            return out.toArray();
+        }
+    }
+
+    private static final class Bytes extends java.io.ByteArrayOutputStream {
+        void u1(int value) { write(value); }
+        void u2(int value) { write(value >> 8); write(value); }
+        void u4(int value) { u2(value >> 16); u2(value); }
+        @Override public void write(byte[] bytes) { write(bytes, 0, bytes.length); }
+        byte[] toArray() { return toByteArray(); }
+    }
+}
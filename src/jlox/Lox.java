@@ -13,15 +13,52 @@ import org.jline.widget.AutosuggestionWidgets;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.List;
 
+/**
+ * A context running Lox scripts: the global state of the runs (symbols, values, call depth) and its options.
+ * A context runs one script at a time, the REPL keeping its global state from one line to the next.
+ * Contexts share nothing mutable, so independent scripts run in parallel, one context each.
+ */
 public class Lox {
-    private static final Interpreter interpreter = new Interpreter();
+    /** JVM stack reserved per nested Lox call of the tree-walk interpreter. */
+    static final long STACK_PER_CALL = 16 * 1024;
+
+    final Interpreter interpreter = new Interpreter();
+    private SymbolTable globalSymbols = new SymbolTable();
+    /** Whether small functions are inlined (see WalkInline), the system property jlox.inline for the command line. */
+    public boolean inlining = true;
+    /** Maximum depth of nested calls, the system property jlox.maxDepth for the command line. */
+    public int maxDepth = Interpreter.DEFAULT_MAX_DEPTH;
+    /** Steps (loop iterations and calls) allowed per run, the system property jlox.maxSteps for the command line. */
+    public long maxSteps = Long.MAX_VALUE;
+
+    /**
+     * The maximum call depth is the system property jlox.maxDepth, jlox.maxSteps bounds the steps
+     * of the script, and jlox.inline=false turns the inlining of small functions off. The script runs on a thread
+     * whose stack is sized for it, since the tree-walk interpreter nests calls on the JVM stack.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        var lox = new Lox();
+        lox.maxDepth = Integer.getInteger("jlox.maxDepth", Interpreter.DEFAULT_MAX_DEPTH);
+        lox.inlining = Boolean.parseBoolean(System.getProperty("jlox.inline", "true"));
+        lox.maxSteps = Long.getLong("jlox.maxSteps", Long.MAX_VALUE);
+        var thread = new Thread(null, () -> {
+            try {
+                lox.runMain(args);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, "jlox", STACK_PER_CALL * lox.maxDepth);
+        thread.start();
+        thread.join();
+    }
 
-    public static void main(String[] args) throws IOException {
+    private void runMain(String[] args) throws IOException {
         if (args.length > 1) {
             System.out.println("Usage: jlox [script]");
             System.exit(64);
@@ -29,28 +66,29 @@ public class Lox {
             Stdio stdio =  (args.length == 1)
                 ? runFile(args[0])
                 : runPrompt();
+            if (stdio.hasExited()) System.exit(stdio.getExitCode());
             if (stdio.hasError()) System.exit(65);
         }
     }
 
-    private static Stdio runFile(String path) throws IOException {
+    private Stdio runFile(String path) throws IOException {
         byte[] bytes = Files.readAllBytes(Paths.get(path));
-        return run(new String(bytes, Charset.defaultCharset())).report();
+        return execute(new String(bytes, Charset.defaultCharset()), RunPhase.INTERPRET).report();
     }
 
-    private static Stdio runPrompt() throws IOException {
+    private Stdio runPrompt() throws IOException {
         var input = new InputStreamReader(System.in);
         var reader = new BufferedReader(input);
 
         // var reader = getReader();
 
         Stdio lastStdio = null;
-        Environment globalSymbols = new Environment();
         for(;;){
             System.out.print("> ");
             var line = reader.readLine();
             if (line == null) break; // EOF (ctrl+D)
-            lastStdio = run(line, RunPhase.INTERPRET_MORE, globalSymbols).report();
+            lastStdio = execute(line, RunPhase.INTERPRET_MORE).report();
+            if (lastStdio.hasExited()) break;
         }
         return lastStdio;
     }
@@ -78,16 +116,33 @@ public class Lox {
         }
     }
 
-    public enum RunPhase { AST, WALK, INTERPRET, INTERPRET_MORE }
-
-    public static Stdio parse(String source) { return run(source, RunPhase.AST, null); }
-    public static Stdio run(String source) { return run(source, RunPhase.INTERPRET, null); }
-
-    public static Stdio run(String source, RunPhase phase, Environment globalSymbols) {
-
-        if (globalSymbols == null)
-            globalSymbols = new Environment();
+    /**
+     * AST and WALK stop after parsing and analysis.
+     * INTERPRET walks the AST, INTERPRET_MORE does the same but keeps the global state of a previous run.
+     * CLOSURE compiles the AST to closures before running it (see ClosureCompiler).
+     * BYTECODE compiles the AST to bytecode run by a stack-based virtual machine (see VM).
+     */
+    public enum RunPhase { AST, WALK, INTERPRET, INTERPRET_MORE, CLOSURE, BYTECODE }
+
+    /**
+     * Run a script in a context of its own.
+     */
+    public static Stdio parse(String source) { return new Lox().execute(source, RunPhase.AST); }
+    public static Stdio run(String source) { return new Lox().execute(source, RunPhase.INTERPRET); }
+    public static Stdio run(String source, RunPhase phase) { return new Lox().execute(source, phase); }
+
+    /**
+     * Stop the script running in this context with a "Script cancelled." error where it stands,
+     * and the scripts run afterwards at their first step. May be called from any thread.
+     */
+    public void cancel() {
+        interpreter.cancel();
+    }
 
+    /**
+     * Run a script in this context. Every phase but INTERPRET_MORE starts from fresh global state.
+     */
+    public Stdio execute(String source, RunPhase phase) {
         if (source.startsWith("#ast")) {
             source = source.substring(4);
             phase = RunPhase.AST;
@@ -98,6 +153,7 @@ public class Lox {
         }
         boolean astOnly = phase == RunPhase.AST;
         boolean walkOnly = phase == RunPhase.WALK;
+        if (phase != RunPhase.INTERPRET_MORE) globalSymbols = new SymbolTable();
 
         Stdio stdio = new Stdio();
         Scanner scanner = new Scanner(source, stdio, 1);
@@ -109,14 +165,22 @@ public class Lox {
         }
         if (astOnly || stdio.hasError()) return stdio;
 
-        Analyzer.analyse(ast, stdio, globalSymbols);
+        Analyzer.analyse(ast, stdio, globalSymbols, inlining);
         if (walkOnly && !stdio.hasError()) {
             stdio.print("Analysis: OK");
         }
         if (stdio.hasError() || walkOnly) return stdio;
 
         if (phase != RunPhase.INTERPRET_MORE) interpreter.reset();
-        interpreter.interpret(ast, stdio);
+        interpreter.maxDepth = maxDepth;
+        interpreter.budget(maxSteps);
+        if (phase == RunPhase.CLOSURE) {
+            ClosureCompiler.run(ast, interpreter, stdio);
+        } else if (phase == RunPhase.BYTECODE) {
+            VM.run(ast, interpreter, stdio);
+        } else {
+            interpreter.interpret(ast, stdio);
+        }
         return stdio;
     }
 }
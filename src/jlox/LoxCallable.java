@@ -3,21 +3,31 @@ package jlox;
 import java.util.List;
 
 interface LoxCallable {
+    Object[] NO_ARGUMENTS = new Object[0];
+
     int arity();
 
     boolean isProperty();
 
-    Object call(Interpreter interpreter, Token leftPar, List<Object> arguments);
+    /**
+     * @param arguments as many as the arity, owned by the callee
+     */
+    Object call(Interpreter interpreter, Token leftPar, Object[] arguments);
 
     class Lambda implements LoxCallable {
         private final List<Token> parameters;
         private final Stmt body;
+        private final ClosureCompiler.Eval code;
         protected final Environment.Scoping scoping;
+        /** number of slots of the function scope */
+        private final int locals;
 
-        public Lambda(List<Token> parameters, Stmt body, Environment.Scoping scoping) {
+        public Lambda(List<Token> parameters, Stmt body, ClosureCompiler.Eval code, Environment.Scoping scoping, int locals) {
             this.parameters = parameters;
             this.body = body;
+            this.code = code;
             this.scoping = scoping;
+            this.locals = locals;
         }
 
         @Override
@@ -30,22 +40,39 @@ interface LoxCallable {
             return false;
         }
         @Override
-        public Object call(Interpreter interpreter, Token leftPar, List<Object> arguments) {
+        public Object call(Interpreter interpreter, Token leftPar, Object[] arguments) {
+            return interpreter.complete(enter(interpreter, leftPar, arguments));
+        }
+
+        /**
+         * Run the body, which may end with a pending tail call (see Interpreter.complete).
+         */
+        protected Object enter(Interpreter interpreter, Token leftPar, Object[] arguments) {
+            interpreter.enterCall(leftPar);
+            try {
+                interpreter.environment.swap(scoping, locals, arguments);
+                return run(interpreter);
+            } catch (StackOverflowError error) {
+                throw new LoxError(leftPar, "Stack overflow.");
+            } finally {
+                interpreter.leaveCall();
+            }
+        }
+
+        /**
+         * Run the body in the swapped environment (parameters defined), then unswap it.
+         */
+        protected Object run(Interpreter interpreter) {
             var environment = interpreter.environment;
-            environment.swap(scoping);
             try {
-                for (int i = 0; i < arity(); i++) {
-                    environment.defineSymbol(
-                            parameters.get(i), arguments.get(i), Symbol.Type.PARAMETER, false);
+                if (code != null) {
+                    return code.eval(interpreter);
                 }
                 if (body instanceof Stmt.Expression expr) {
                     return interpreter.evaluate(expr.expression);
-                } else {
-                    interpreter.execute(body);
                 }
-            } catch (Interpreter.ReturnException ex) {
-                if (ex.value != null) {
-                    return ex.value;
+                if (interpreter.execute(body) == Interpreter.Completion.RETURN) {
+                    return interpreter.takeReturnValue();
                 }
             } finally {
                 environment.unswap();
@@ -63,12 +90,34 @@ interface LoxCallable {
     class LoxFunction extends Lambda {
 
         protected final Stmt.Function stmt;
+        private int invocations = 0;
 
         public LoxFunction(Stmt.Function fun, Environment.Scoping scoping) {
-            super(fun.parameters, fun.body, scoping);
+            super(fun.parameters, fun.body, fun.code, scoping, fun.locals);
             this.stmt = fun;
         }
 
+        /**
+         * Hot functions are compiled to JVM code when they are numeric kernels (see JvmCompiler).
+         */
+        @Override
+        protected Object enter(Interpreter interpreter, Token leftPar, Object[] arguments) {
+            if (stmt.kernel == null && ++invocations >= JvmCompiler.HOT_THRESHOLD)
+                stmt.kernel = JvmCompiler.compile(stmt, interpreter);
+            if (stmt.kernel != null && stmt.kernel.accepts(arguments)) {
+                int depth = interpreter.callDepth();
+                interpreter.enterCall(leftPar);
+                try {
+                    return stmt.kernel.call(arguments);
+                } catch (StackOverflowError error) {
+                    throw new LoxError(leftPar, "Stack overflow.");
+                } finally {
+                    interpreter.unwindCalls(depth);
+                }
+            }
+            return super.enter(interpreter, leftPar, arguments);
+        }
+
         protected String name() {
             return stmt.name.lexeme();
         }
@@ -93,32 +142,66 @@ interface LoxCallable {
             this.parent = parent;
         }
 
-        public BoundedMethod bind(LoxInstance instance) {
-            return new BoundedMethod(stmt, scoping.bind(parent.classStmt.self, instance), instance);
+        public LoxCallable bind(LoxInstance instance) {
+            return new BoundedMethod(this, instance);
+        }
+
+        /**
+         * Call the method with self bound to instance, without creating a bound method.
+         */
+        public Object call(Interpreter interpreter, LoxInstance self, Token leftPar, Object[] arguments) {
+            return interpreter.complete(enter(interpreter, self, leftPar, arguments));
+        }
+
+        /**
+         * Same as enter, with self bound to instance.
+         */
+        protected Object enter(Interpreter interpreter, LoxInstance self, Token leftPar, Object[] arguments) {
+            interpreter.enterCall(leftPar);
+            try {
+                interpreter.environment.swap(scoping, self, stmt.locals, arguments);
+                Object result = run(interpreter);
+                return isInit() ? self : result;
+            } catch (StackOverflowError error) {
+                throw new LoxError(leftPar, "Stack overflow.");
+            } finally {
+                interpreter.leaveCall();
+            }
+        }
+
+        private boolean isInit() {
+            return name().equals("init");
         }
 
         @Override
-        public Object call(Interpreter interpreter, Token leftPar, List<Object> arguments) {
+        public Object call(Interpreter interpreter, Token leftPar, Object[] arguments) {
+            throw new LoxError(leftPar, "Internal error: cannot call an unbounded method");
+        }
+
+        @Override
+        protected Object enter(Interpreter interpreter, Token leftPar, Object[] arguments) {
             throw new LoxError(leftPar, "Internal error: cannot call an unbounded method");
         }
     }
 
     class BoundedMethod extends LoxFunction {
+        private final Method method;
         private final LoxInstance self;
 
-        public BoundedMethod(Stmt.Function fun, Environment.Scoping scoping, LoxInstance instance) {
-            super(fun, scoping);
+        public BoundedMethod(Method method, LoxInstance instance) {
+            super(method.stmt, method.scoping);
+            this.method = method;
             this.self = instance;
         }
 
-        private boolean isInit() {
-            return name().equals("init");
+        @Override
+        public Object call(Interpreter interpreter, Token leftPar, Object[] arguments) {
+            return method.call(interpreter, self, leftPar, arguments);
         }
 
         @Override
-        public Object call(Interpreter interpreter, Token leftPar, List<Object> arguments) {
-            Object result = super.call(interpreter, leftPar, arguments);
-            return isInit() ? self : result;
+        protected Object enter(Interpreter interpreter, Token leftPar, Object[] arguments) {
+            return method.enter(interpreter, self, leftPar, arguments);
         }
     }
 
@@ -1,38 +1,70 @@
 package jlox;
 
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
 public class LoxClass implements LoxCallable {
+
+    /**
+     * Creates the method objects of a class, depending on the execution engine.
+     */
+    interface MethodFactory {
+        Method create(Stmt.Function method, LoxClass parent);
+    }
+
     final String name;
     private final Map<String, Method> methods;
+    /** methods of the superclasses, in resolution order (depth-first, first found wins) */
+    private final Map<String, Method> inheritedMethods = new HashMap<>();
+    /** own and inherited methods, flattened */
+    private final Map<String, Method> allMethods;
+    /** this class and its ancestors, by class name token (targets of 'super') */
+    private final Map<Token, LoxClass> lineage = new IdentityHashMap<>();
+    final Method init;
     private final Map<String, LoxCallable> classMethods;
 
     final Stmt.Class classStmt;
 
     final List<LoxClass> superclasses;
 
+    /** the initial (empty) field layout of the instances */
+    final Shape shape = new Shape();
+
     public LoxClass(String name, List<LoxClass> superclasses, Map<String, LoxCallable> classMethods, Stmt.Class stmt, Environment.Scoping scoping) {
+        this(name, superclasses, classMethods, stmt, (method, parent) -> new Method(method, scoping, parent));
+        assert methods.isEmpty() || scoping != null;
+    }
+
+    public LoxClass(String name, List<LoxClass> superclasses, Map<String, LoxCallable> classMethods, Stmt.Class stmt, MethodFactory factory) {
         this.name = name;
         this.superclasses = superclasses;
         this.classMethods = classMethods;
         this.classStmt = stmt;
         methods = new HashMap<>();
         for (var method : classStmt.methods.methods) {
-            methods.put(method.name.lexeme(), new LoxCallable.Method(method, scoping, this));
+            methods.put(method.name.lexeme(), factory.create(method, this));
         }
-        assert methods.isEmpty() || scoping != null;
+        lineage.put(stmt.name, this);
+        for (var superclass: superclasses) {
+            superclass.allMethods.forEach(inheritedMethods::putIfAbsent);
+            superclass.lineage.forEach(lineage::putIfAbsent);
+        }
+        allMethods = new HashMap<>(inheritedMethods);
+        allMethods.putAll(methods);
+        init = allMethods.get("init");
     }
 
     public Method findMethod(String name, boolean superclassOnly) {
-        var method = methods.getOrDefault(name, null);
-        if (method != null && ! superclassOnly) return method;
-        for (var superclass: superclasses) {
-            method = superclass.findMethod(name, false);
-            if (method != null) return method;
-        }
-        return null;
+        return (superclassOnly ? inheritedMethods : allMethods).get(name);
+    }
+
+    /**
+     * @return the class declared at targetClassName among this class and its ancestors, null if none
+     */
+    LoxClass findAncestor(Token targetClassName) {
+        return lineage.get(targetClassName);
     }
 
     public LoxCallable findClassMethod(String name) {
@@ -46,12 +78,7 @@ public class LoxClass implements LoxCallable {
 
     @Override
     public int arity() {
-        // TODO not very efficient, because we need to lookup every time.
-        Method init = findMethod("init", false);
-        if (init != null) {
-            return init.arity();
-        }
-        return 0;
+        return init != null ? init.arity() : 0;
     }
 
     @Override
@@ -60,11 +87,10 @@ public class LoxClass implements LoxCallable {
     }
 
     @Override
-    public Object call(Interpreter interpreter, Token leftPar, List<Object> arguments) {
+    public Object call(Interpreter interpreter, Token leftPar, Object[] arguments) {
         LoxInstance instance = new LoxInstance(this);
-        Method init = findMethod("init", false);
         if (init != null) {
-            init.bind(instance).call(interpreter, leftPar, arguments);
+            init.call(interpreter, instance, leftPar, arguments);
         }
         return instance;
     }
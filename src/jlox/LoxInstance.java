@@ -1,14 +1,18 @@
 package jlox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 public class LoxInstance {
-    private final LoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    private static final Object[] NO_FIELDS = new Object[0];
+
+    final LoxClass klass;
+    /** the field layout, shared with the instances of the class having the same fields */
+    private Shape shape;
+    private Object[] fields = NO_FIELDS;
 
     public LoxInstance(LoxClass klass) {
         this.klass = klass;
+        this.shape = klass.shape;
     }
 
     @Override
@@ -16,10 +20,28 @@ public class LoxInstance {
         return klass.name + " instance";
     }
 
+    Shape shape() {
+        return shape;
+    }
+
+    Object field(int index) {
+        return fields[index];
+    }
+
+    /**
+     * Store a field at index, after a set on the same shape resulting in the next shape.
+     */
+    void store(Shape next, int index, Object value) {
+        if (index >= fields.length) fields = Arrays.copyOf(fields, Math.max(4, 2 * index));
+        shape = next;
+        fields[index] = value;
+    }
+
     public Object get(Token name) {
         String lexeme = name.lexeme();
-        if (fields.containsKey(lexeme)) {
-            return fields.get(lexeme);
+        int index = shape.indexOf(lexeme);
+        if (index >= 0) {
+            return fields[index];
         }
         var method = klass.findMethod(lexeme, false);
         if (method != null) return method.bind(this);
@@ -27,9 +49,24 @@ public class LoxInstance {
         throw new LoxError(name, "Undefined property '%s'.".formatted(lexeme));
     }
 
-    public LoxCallable getSuper(Token methodName, Token targetClassName, boolean isExplicit) {
+    public LoxCallable getSuper(Expr.Super expr) {
+        return superMethod(expr).bind(this);
+    }
+
+    /**
+     * The method called by 'super', cached on the expression for the class of this instance.
+     */
+    LoxCallable.Method superMethod(Expr.Super expr) {
+        if (expr.selfClass != klass) {
+            expr.resolved = findSuper(expr.method, expr.targetClass, expr.explicitSuperclass != null);
+            expr.selfClass = klass;
+        }
+        return expr.resolved;
+    }
+
+    private LoxCallable.Method findSuper(Token methodName, Token targetClassName, boolean isExplicit) {
 
-        var targetClass = findTargetClass(klass, targetClassName);
+        var targetClass = klass.findAncestor(targetClassName);
 
         if (targetClass == null) {
             // this error should not occur if static analysis is correct
@@ -43,16 +80,7 @@ public class LoxInstance {
                                 : "Class '%s' has no superclasses accepting method '%s'.")
                     .formatted(targetClass.name, methodName.lexeme()));
         }
-        return method.bind(this);
-    }
-
-    private LoxClass findTargetClass(LoxClass klass, Token targetClassName) {
-        if (klass.classStmt.name == targetClassName) return klass;
-        for (var superclass : klass.superclasses) {
-            var found = findTargetClass(superclass, targetClassName);
-            if (found != null) return found;
-        }
-        return null;
+        return method;
     }
 
     public Object set(Token name, Object value) {
@@ -61,7 +89,12 @@ public class LoxInstance {
                     "Cannot change '%s'. Methods and properties are immutables."
                             .formatted(name.lexeme()));
         }
-        fields.put(name.lexeme(), value);
+        int index = shape.indexOf(name.lexeme());
+        if (index < 0) {
+            store(shape.with(name.lexeme()), shape.size(), value);
+        } else {
+            fields[index] = value;
+        }
         return value;
     }
 }
@@ -1,6 +1,5 @@
 package jlox;
 
-import java.util.List;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
@@ -33,23 +32,23 @@ public abstract class LoxNative implements LoxCallable {
 
     static final jlox.LoxNative clock = new jlox.LoxNative("clock", 0, false) {
         @Override
-        public Object call(Interpreter interpreter, Token leftPar, List<Object> arguments) {
+        public Object call(Interpreter interpreter, Token leftPar, Object[] arguments) {
             return System.currentTimeMillis() / 1000.0;
         }
     };
 
     static final jlox.LoxNative lineSeparator = new jlox.LoxNative("lineSeparator", 0, true) {
         @Override
-        public Object call(Interpreter interpreter, Token leftPar, List<Object> arguments) {
+        public Object call(Interpreter interpreter, Token leftPar, Object[] arguments) {
             return System.lineSeparator();
         }
     };
     static final jlox.LoxNative exit = new jlox.LoxNative("exit", 1, false) {
         @Override
-        public Object call(Interpreter interpreter, Token leftPar, List<Object> arguments) {
-            if (arguments.get(0) instanceof Double exitCode)
-                System.exit(exitCode.intValue());
-            throw new Interpreter.TypeMismatchError(leftPar, Double.class, arguments.get(0), "First argument.");
+        public Object call(Interpreter interpreter, Token leftPar, Object[] arguments) {
+            if (arguments[0] instanceof Double exitCode)
+                throw new Interpreter.Exit(leftPar, exitCode.intValue());
+            throw new Interpreter.TypeMismatchError(leftPar, Double.class, arguments[0], "First argument.");
         }
     };
 
@@ -119,12 +118,12 @@ public abstract class LoxNative implements LoxCallable {
         }
 
         @Override
-        public Object call(Interpreter interpreter, Token leftPar, List<Object> arguments) {
+        public Object call(Interpreter interpreter, Token leftPar, Object[] arguments) {
             if (arity() == 0) return func0().get();
             try {
                 var func = this.func;
                 for (int i = 0; i < arity(); i++) {
-                    func = ((Function<Object, Object>)func).apply(arguments.get(i));
+                    func = ((Function<Object, Object>)func).apply(arguments[i]);
                 }
                 return func;
             } catch(LoxError error) {
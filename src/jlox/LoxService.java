@@ -0,0 +1,144 @@
+package jlox;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the submitted scripts in parallel, each in a context of its own (see Lox), on a bounded
+ * number of threads: the submissions beyond wait their turn. The stack of the threads is sized
+ * for the maximum call depth of the scripts, as on the command line, since the tree-walk interpreter
+ * nests calls on the JVM stack.
+ * <p>
+ * A script still running at its timeout, counted from the start of its run (not its wait), is cancelled: its result reports where it stopped.
+ * Its steps (loop iterations and calls) may be bounded too, see Lox.maxSteps.
+ */
+public class LoxService implements AutoCloseable {
+
+    /**
+     * Scripts completed so far, their throughput over the last seconds (see THROUGHPUT_WINDOW),
+     * and their latency (from submission to completion).
+     */
+    public record Metrics(long completed, double scriptsPerSecond, Duration p50, Duration p99) {}
+
+    /** latencies kept for the percentiles, the most recent ones */
+    private static final int LATENCY_SAMPLES = 4096;
+    /** seconds over which the throughput is measured */
+    private static final int THROUGHPUT_WINDOW = 10;
+
+    private final int maxDepth;
+    private final ExecutorService executor;
+    /** cancels the scripts at their timeout, the cancellation dropped when they complete before */
+    private final ScheduledThreadPoolExecutor timer;
+    private final long start = System.nanoTime();
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+    private long completed = 0;
+    /** scripts completed by second since start, for the seconds of the window */
+    private final long[] completedBySecond = new long[THROUGHPUT_WINDOW];
+    private final long[] seconds = new long[THROUGHPUT_WINDOW];
+
+    public LoxService(int parallelism) {
+        this(parallelism, Interpreter.DEFAULT_MAX_DEPTH);
+    }
+
+    /**
+     * @param maxDepth maximum depth of nested calls of the scripts (see Lox.maxDepth)
+     */
+    public LoxService(int parallelism, int maxDepth) {
+        this.maxDepth = maxDepth;
+        var count = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(parallelism, task -> {
+            var thread = new Thread(null, task, "jlox-" + count.incrementAndGet(),
+                    Lox.STACK_PER_CALL * maxDepth);
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer = new ScheduledThreadPoolExecutor(1, task -> {
+            var thread = new Thread(task, "jlox-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    public CompletableFuture<Stdio> submit(String source) {
+        return submit(source, Lox.RunPhase.INTERPRET, null, Long.MAX_VALUE);
+    }
+
+    public CompletableFuture<Stdio> submit(String source, Lox.RunPhase phase, Duration timeout) {
+        return submit(source, phase, timeout, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param timeout wall-clock time allowed once the script runs, null for none
+     * @param maxSteps steps allowed to the script
+     */
+    public CompletableFuture<Stdio> submit(String source, Lox.RunPhase phase, Duration timeout, long maxSteps) {
+        long submitted = System.nanoTime();
+        var lox = new Lox();
+        lox.maxDepth = maxDepth;
+        lox.maxSteps = maxSteps;
+        var result = CompletableFuture.supplyAsync(() -> {
+            var cancellation = timeout == null ? null
+                    : timer.schedule(lox::cancel, timeout.toNanos(), TimeUnit.NANOSECONDS);
+            try {
+                return lox.execute(source, phase);
+            } finally {
+                if (cancellation != null) cancellation.cancel(false);
+            }
+        }, executor);
+        // The caller sees the result once it is measured
+        return result.whenComplete((stdio, error) -> record(submitted, System.nanoTime()));
+    }
+
+    private synchronized void record(long submitted, long now) {
+        latencies[(int) (completed++ % LATENCY_SAMPLES)] = now - submitted;
+        long second = (now - start) / 1_000_000_000L;
+        int i = (int) (second % THROUGHPUT_WINDOW);
+        if (seconds[i] != second) {
+            seconds[i] = second;
+            completedBySecond[i] = 0;
+        }
+        completedBySecond[i]++;
+    }
+
+    public synchronized Metrics metrics() {
+        var sorted = Arrays.copyOf(latencies, (int) Math.min(completed, LATENCY_SAMPLES));
+        Arrays.sort(sorted);
+        return new Metrics(completed, throughput(), percentile(sorted, 50), percentile(sorted, 99));
+    }
+
+    /**
+     * @return the scripts completed per second, over the current second and the previous ones of the window
+     */
+    private double throughput() {
+        long elapsed = System.nanoTime() - start;
+        long second = elapsed / 1_000_000_000L;
+        long count = 0;
+        for (int i = 0; i < THROUGHPUT_WINDOW; i++) {
+            if (seconds[i] > second - THROUGHPUT_WINDOW) count += completedBySecond[i];
+        }
+        if (count == 0) return 0;
+        double window = Math.min(elapsed / 1e9, THROUGHPUT_WINDOW - 1 + (elapsed % 1_000_000_000L) / 1e9);
+        return count / window;
+    }
+
+    private static Duration percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) return Duration.ZERO;
+        return Duration.ofNanos(sorted[(sorted.length - 1) * percent / 100]);
+    }
+
+    /**
+     * Stop accepting scripts, the ones submitted run to completion.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        timer.shutdown();
+    }
+}
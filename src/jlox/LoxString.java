@@ -59,6 +59,6 @@ public class LoxString extends LoxClass {
     }
 
     private LoxString(String name, List<LoxClass> superclasses, Map<String, LoxCallable> classMethods, Stmt.Class stmt) {
-        super(name, superclasses, classMethods, stmt, null);
+        super(name, superclasses, classMethods, stmt, (Environment.Scoping) null);
     }
 }
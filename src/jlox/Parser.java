@@ -62,13 +62,11 @@ public class Parser {
         return statements;
     }
 
-    private static final Stdio _stdio = new Stdio();
-    private static final Parser _parser = new Parser(new ArrayList<>(), _stdio);
-
     public static List<Stmt> Parse(String source, int line) {
-        var stmts = _parser.reparse(source, line);
-        if (_stdio.hasError()) {
-            _stdio.report();
+        var stdio = new Stdio();
+        var stmts = new Parser(new ArrayList<>(), stdio).reparse(source, line);
+        if (stdio.hasError()) {
+            stdio.report();
         }
         return stmts;
     }
@@ -204,6 +202,7 @@ public class Parser {
     }
 
     private Stmt forStatement() {
+        var keyword = previous();
         consume(LEFT_PAREN, "Expect '(' after 'for'");
 
         Stmt initializer = null;
@@ -248,20 +247,21 @@ public class Parser {
 
         if (condition == null)
             condition = new Expr.Literal(true);
-        var whileStmt = new Stmt.While(condition, whileBody);
+        var whileStmt = new Stmt.While(keyword, condition, whileBody);
 
         var forStmt = initializer == null ? whileStmt
-                : new Stmt.Block(List.of(initializer, whileStmt));
+                : new Stmt.Block(new ArrayList<>(List.of(initializer, whileStmt)));
 
         return forStmt;
     }
 
     private Stmt whileStatement() {
+        var keyword = previous();
         consume(LEFT_PAREN, "Expect '(' after 'while'");
         var condition = expression();
         consume(RIGHT_PAREN, "Expect ')' after condition");
         var body = loopBody();
-        return new Stmt.While(condition, body);
+        return new Stmt.While(keyword, condition, body);
     }
 
     private Stmt loopBody() {
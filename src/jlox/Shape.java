@@ -0,0 +1,40 @@
+package jlox;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Layout of the fields of an instance (hidden class): field names and their index in the values array.
+ * Shapes are shared by the instances of a class that set the same fields in the same order,
+ * each new field is a transition to a child shape. The shapes of the predefined String class are shared
+ * by the scripts running in parallel, hence concurrent transitions.
+ */
+class Shape {
+    private final Map<String, Integer> slots;
+    private final Map<String, Shape> transitions = new ConcurrentHashMap<>();
+
+    Shape() {
+        this.slots = Map.of();
+    }
+
+    private Shape(Shape parent, String name) {
+        slots = new HashMap<>(parent.slots);
+        slots.put(name, parent.size());
+    }
+
+    /**
+     * @return the index of the field, -1 if this shape has no such field
+     */
+    int indexOf(String name) {
+        return slots.getOrDefault(name, -1);
+    }
+
+    int size() {
+        return slots.size();
+    }
+
+    Shape with(String name) {
+        return transitions.computeIfAbsent(name, n -> new Shape(this, n));
+    }
+}
@@ -5,13 +5,12 @@ public class Stdio {
     private int printCount = 0;
     private int errorCount = 0;
     private int warningCount = 0;
+    /** code given to exit by the script, null if it did not exit */
+    private Integer exitCode = null;
 
     private final StringBuilder _stderr = new StringBuilder();
     private final StringBuilder _stdout = new StringBuilder();
 
-    public static final AstPrinter astOneLinePrinter = new AstPrinter(" ");
-    public static final AstPrinter astPrinter = new AstPrinter();
-
     static String stringify(Object value) {
         if (value == null)
             return "nil";
@@ -43,7 +42,16 @@ public class Stdio {
         _stdout.append(stringify(value)).append('\n');
     }
 
+    public boolean hasExited() {
+        return exitCode != null;
+    }
+
+    void exit(int code) {
+        exitCode = code;
+    }
+
     void reset() {
+        exitCode = null;
         printCount = 0;
         errorCount = 0;
         warningCount = 0;
@@ -119,4 +127,8 @@ public class Stdio {
     public int getWarningCount() {
         return warningCount;
     }
+
+    public int getExitCode() {
+        return exitCode;
+    }
 }
@@ -66,6 +66,7 @@ abstract class Stmt {
   static class Block extends Stmt {
 
     final List<Stmt> statements;
+    /** false when the block shares the scope of its parent (function body or no declarations) */ boolean scoped = true;
 
     Block ( List<Stmt> statements ) {
       this.statements = statements;
@@ -93,8 +94,8 @@ abstract class Stmt {
   }
   static class ForBlock extends Stmt {
 
-    final Stmt body;
-    final Stmt updater;
+    Stmt body;
+    Stmt updater;
 
     ForBlock ( Stmt body, Stmt updater ) {
       this.body = body;
@@ -128,6 +129,7 @@ abstract class Stmt {
     final Stmt.Methods methods;
     final List<Stmt.Function> classMethods;
     Token self = null;
+    /** index of the class symbol in its scope */ int slot = -1;
 
     Class ( Token name, List<Expr.Variable> superclasses, Stmt.Methods methods, List<Stmt.Function> classMethods ) {
       this.name = name;
@@ -186,7 +188,7 @@ abstract class Stmt {
   }
   static class Expression extends Stmt {
 
-    final Expr expression;
+    Expr expression;
 
     Expression ( Expr expression ) {
       this.expression = expression;
@@ -220,6 +222,12 @@ abstract class Stmt {
     final String kind;
     final boolean isProperty;
     final boolean isClass;
+    /** index of the function symbol in its scope (none for instance methods) */ int slot = -1;
+    /** body compiled by the ClosureCompiler (null if not compiled) */ ClosureCompiler.Eval code = null;
+    /** function compiled by the JvmCompiler once hot (null until then) */ JvmCompiler.Kernel kernel = null;
+    /** number of slots of the function scope (parameters and locals) */ int locals = 0;
+    /** free variables of the body in the scope creating the closure (null to capture the whole scope chain) */ List<Environment.Capture> captures = null;
+    /** the closure when it captures nothing (created once) */ LoxCallable.LoxFunction shared = null;
 
     Function ( Token name, List<Token> parameters, Stmt body, String kind, boolean isProperty, boolean isClass ) {
       this.name = name;
@@ -252,9 +260,9 @@ abstract class Stmt {
   }
   static class If extends Stmt {
 
-    final Expr condition;
-    final Stmt then;
-    final Stmt else_;
+    Expr condition;
+    Stmt then;
+    Stmt else_;
 
     If ( Expr condition, Stmt then, Stmt else_ ) {
       this.condition = condition;
@@ -312,7 +320,7 @@ abstract class Stmt {
   }
   static class Last extends Stmt {
 
-    final Expr expression;
+    Expr expression;
 
     Last ( Expr expression ) {
       this.expression = expression;
@@ -340,7 +348,7 @@ abstract class Stmt {
   }
   static class Print extends Stmt {
 
-    final Expr expression;
+    Expr expression;
 
     Print ( Expr expression ) {
       this.expression = expression;
@@ -369,7 +377,7 @@ abstract class Stmt {
   static class Return extends Stmt {
 
     final Token keyword;
-    final Expr value;
+    Expr value;
 
     Return ( Token keyword, Expr value ) {
       this.keyword = keyword;
@@ -399,8 +407,9 @@ abstract class Stmt {
   static class Var extends Stmt {
 
     final Token name;
-    final Expr initializer;
+    Expr initializer;
     final boolean isReadonly;
+    /** index of the variable symbol in its scope */ int slot = -1;
 
     Var ( Token name, Expr initializer, boolean isReadonly ) {
       this.name = name;
@@ -430,10 +439,13 @@ abstract class Stmt {
   }
   static class While extends Stmt {
 
-    final Expr condition;
-    final Stmt body;
+    final Token keyword;
+    Expr condition;
+    Stmt body;
+    /** number of loop invariant expressions cached by the loop (see WalkInvariant) */ int invariants = 0;
 
-    While ( Expr condition, Stmt body ) {
+    While ( Token keyword, Expr condition, Stmt body ) {
+      this.keyword = keyword;
       this.condition = condition;
       this.body = body;
     }
@@ -1,33 +1,25 @@
 package jlox;
 
+/**
+ * A declaration in the {@link SymbolTable} of the analysis. The runtime only knows its slot:
+ * the values are held by the {@link Environment}.
+ */
 class Symbol {
 
     enum Type { VAR, FUN, PARAMETER, CLASS, SPECIAL }
-    static final Object UNINITIALIZED = new Object();
 
     final Token token;
-    private Object value;
     final boolean readonly;
     final Type type;
+    /** index of the symbol in its scope */
+    final int slot;
     private int useCount = 0;
 
-    Symbol(Token token, boolean readonly, Object value, Type type) {
+    Symbol(Token token, boolean readonly, Type type, int slot) {
         this.token = token;
         this.readonly = readonly;
-        this.value = value;
         this.type = type;
-    }
-
-    public Object getValue(Token emitter) {
-        if (value == UNINITIALIZED)
-            throw new LoxError(emitter, "%s is uninitialized.".formatted(name()));
-        return value;
-    }
-
-    public void setValue(Token receiver, Object value) {
-        if (readonly)
-            throw new LoxError(receiver, "%s is read only.".formatted(name()));
-        this.value = value;
+        this.slot = slot;
     }
 
     public void use() {
@@ -0,0 +1,191 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The symbols of the scopes being analysed, by name (see WalkSymbol). Each symbol gets a slot
+ * in its scope: the runtime {@link Environment} holds the values by slot, without any symbol.
+ */
+public class SymbolTable {
+
+    private Scope scope = new Scope(Scope.GLOBAL, false, false);
+
+    void push() {
+        push(false);
+    }
+
+    void push(boolean readonly) {
+        scope = new Scope(scope, readonly, true);
+    }
+
+    void pop() {
+        scope = scope.outer;
+        assert scope.outer != null; // We don't want to pop to the global scope!
+    }
+
+    int depth() {
+        int depth = 0;
+        Scope current = scope;
+        while (current != null) {
+            depth++;
+            current = current.outer;
+        }
+        return depth;
+    }
+
+    /**
+     * Define a symbol by name, in the next free slot of the current scope.
+     */
+    Symbol defineSymbol(Token name, Symbol.Type type, boolean readonlySvp) {
+        // NB Symbol can be redefined without error
+        return scope.define(name.lexeme(), name, type, readonlySvp);
+    }
+
+    /**
+     * Reserve slots in the current scope for values without a name.
+     * @return the first slot reserved
+     */
+    int reserveSlots(int count) {
+        int first = scope.slotCount;
+        scope.slotCount += count;
+        return first;
+    }
+
+    /**
+     * @return the number of slots used in the current scope
+     */
+    int slotCount() {
+        return scope.slotCount;
+    }
+
+    Collection<Symbol> localSymbols() {
+        return scope.symbols == null ? Collections.emptyList() : scope.symbols.values();
+    }
+
+    Symbol getSymbol(Token symbol) {
+        String name = symbol.lexeme();
+        Symbol sym = scope.get(name);
+        if (sym == null) {
+            throw new LoxError(symbol, "Undefined identifier '%s'.".formatted(name));
+        }
+        return sym;
+    }
+
+    /**
+     * @return the number of scopes between the current scope and the one defining the symbol.
+     */
+    int hops(Symbol symbol) {
+        int hops = 0;
+        for (Scope current = scope; current != null; current = current.outer, hops++) {
+            if (current.holds(symbol)) {
+                return hops;
+            }
+        }
+        throw new IllegalStateException("Symbol not in scope: " + symbol.name());
+    }
+
+    /**
+     * @return whether the symbol is declared at top level, where a REPL may have analysed it but failed to run it.
+     */
+    boolean isTopLevel(Symbol symbol) {
+        Scope current = scope;
+        while (current.outer != Scope.GLOBAL) {
+            current = current.outer;
+        }
+        return current.holds(symbol);
+    }
+
+    /**
+     * @return the predefined (native) symbol with that name, or null if none.
+     */
+    static Symbol predefined(String name) {
+        return Scope.GLOBAL.get(name);
+    }
+
+    /**
+     * @return whether the symbol is predefined, shared by all the symbol tables
+     */
+    static boolean isPredefined(Symbol symbol) {
+        return Scope.GLOBAL.holds(symbol);
+    }
+
+    /**
+     * @return the values of the predefined symbols, by slot (the global scope of the Environment).
+     */
+    static Object[] predefinedValues() {
+        return Scope.PREDEFINED_VALUES.toArray();
+    }
+
+    private static class Scope {
+        private static final Symbol[] NO_SLOTS = new Symbol[0];
+
+        private Map<String, Symbol> symbols = null;
+        private Symbol[] slots = NO_SLOTS;
+        private int slotCount = 0;
+        private final Scope outer;
+        private final boolean readonly;
+
+        private final boolean oneDefinitionOnly;
+
+        private Scope(Scope outer, boolean readonly, boolean oneDefinitionOnly) {
+            this.outer = outer;
+            this.readonly = readonly;
+            this.oneDefinitionOnly = oneDefinitionOnly;
+        }
+
+        Symbol define(String name, Token token, Symbol.Type type, boolean readonlySvp) {
+            if (symbols == null) symbols = new HashMap<>();
+            Symbol previousSym = symbols.get(name);
+            if (oneDefinitionOnly && previousSym != null) {
+                throw new LoxError(token,
+                        "%s (at line %d) cannot be redeclared as a new %s."
+                                .formatted(previousSym.name(), previousSym.token.line(), Symbol.typeName(type)));
+            }
+            int slot = slotCount++;
+            if (slot >= slots.length) {
+                slots = Arrays.copyOf(slots, Math.max(slot + 1, slots.length * 2));
+            }
+            Symbol newSym = new Symbol(token, readonly || readonlySvp, type, slot);
+            slots[slot] = newSym;
+            symbols.put(name, newSym);
+            return newSym;
+        }
+
+        boolean holds(Symbol symbol) {
+            return symbol.slot < slots.length && slots[symbol.slot] == symbol;
+        }
+
+        Symbol get(String name) {
+            if (symbols != null) {
+                Symbol symbol = symbols.get(name);
+                if (symbol != null) return symbol;
+            }
+            if (outer != null) {
+                return outer.get(name);
+            }
+            return null; // not found
+        }
+
+        static final Scope GLOBAL = new Scope(null, true, true);
+        private static final List<Object> PREDEFINED_VALUES = new ArrayList<>();
+
+        private static void predefine(String name, Token token, Object value, Symbol.Type type) {
+            GLOBAL.define(name, token, type, true);
+            PREDEFINED_VALUES.add(value);
+        }
+
+        static {
+            predefine("clock", Token.Special("<fun clock>"), LoxNative.clock, Symbol.Type.FUN);
+            predefine("lineSeparator", Token.Special("<fun lineSeparator>"), LoxNative.lineSeparator, Symbol.Type.FUN);
+            predefine("exit", Token.Special("<fun exit>"), LoxNative.exit, Symbol.Type.FUN);
+
+            predefine(LoxString.instance.name, LoxString.instance.classStmt.name, LoxString.instance, Symbol.Type.CLASS);
+        }
+    }
+}
@@ -0,0 +1,674 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static jlox.Bytecode.*;
+import static jlox.Interpreter.*;
+
+/**
+ * Stack-based virtual machine running the bytecode of {@link BytecodeCompiler}.
+ * <p>
+ * Values live on a single stack of objects, one window (base..sp) per call frame.
+ * Numbers are not boxed there: their slot holds UNBOXED and the value is in a parallel stack of doubles,
+ * so locals, parameters, globals and arithmetic work on primitive doubles. Numbers are boxed only
+ * when they leave the stack (print, natives, fields, closed upvalues, calls from Java).
+ * Local variables captured by closures are moved to the heap when their slot goes away
+ * (see {@link Upvalue}). Classes, instances and natives are the ones of the tree-walk interpreter,
+ * so that both can call each other: a {@link Closure} is a {@link LoxCallable}.
+ */
+class VM {
+
+    /** Stack space guaranteed to a frame: at most 512 locals, plus temporaries. */
+    private static final int FRAME_STACK = 1024;
+    private static final Object UNDEFINED = new Object();
+    /** Marks a stack or global slot holding a number, whose value is in the parallel double array. */
+    private static final Object UNBOXED = new Object();
+
+    static class CallFrame {
+        Closure closure;
+        int ip;
+        int base;
+    }
+
+    /**
+     * A variable captured by a closure: an index in the stack while the variable is alive (open),
+     * then its own value once its slot is gone (closed).
+     */
+    static class Upvalue {
+        int index;
+        Object closed = null;
+        Upvalue next = null;
+
+        Upvalue(int index) {
+            this.index = index;
+        }
+    }
+
+    static class Closure implements LoxCallable {
+        final VM vm;
+        final Proto proto;
+        final Upvalue[] upvalues;
+
+        Closure(VM vm, Proto proto, Upvalue[] upvalues) {
+            this.vm = vm;
+            this.proto = proto;
+            this.upvalues = upvalues;
+        }
+
+        @Override
+        public int arity() {
+            return proto.arity;
+        }
+
+        @Override
+        public boolean isProperty() {
+            return proto.isProperty;
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, Token leftPar, Object[] arguments) {
+            return vm.invoke(this, this, arguments, leftPar);
+        }
+
+        @Override
+        public String toString() {
+            return switch (proto.kind) {
+                case LAMBDA -> "<lambda>";
+                case FUNCTION -> "<LoxFunction %s>".formatted(proto.name);
+                default -> "<Method %s>".formatted(proto.name);
+            };
+        }
+    }
+
+    static class BoundMethod implements LoxCallable {
+        final Closure method;
+        final LoxInstance receiver;
+
+        BoundMethod(Closure method, LoxInstance receiver) {
+            this.method = method;
+            this.receiver = receiver;
+        }
+
+        @Override
+        public int arity() {
+            return method.arity();
+        }
+
+        @Override
+        public boolean isProperty() {
+            return method.isProperty();
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, Token leftPar, Object[] arguments) {
+            return method.vm.invoke(method, receiver, arguments, leftPar);
+        }
+
+        @Override
+        public String toString() {
+            return "<BoundedMethod %s>".formatted(method.proto.name);
+        }
+    }
+
+    /**
+     * Method of a class compiled to bytecode.
+     */
+    static class VmMethod extends LoxCallable.Method {
+        final Closure closure;
+
+        VmMethod(Stmt.Function stmt, LoxClass parent, Closure closure) {
+            super(stmt, null, parent);
+            this.closure = closure;
+        }
+
+        @Override
+        public LoxCallable bind(LoxInstance instance) {
+            return new BoundMethod(closure, instance);
+        }
+
+        @Override
+        protected Object enter(Interpreter interpreter, LoxInstance self, Token leftPar, Object[] arguments) {
+            return closure.vm.invoke(closure, self, arguments, leftPar);
+        }
+    }
+
+    private final Interpreter interpreter;
+    private final Object[] globals;
+    private final double[] globalNumbers;
+    private Object[] stack = new Object[4 * FRAME_STACK];
+    private double[] numbers = new double[4 * FRAME_STACK];
+    private int sp = 0;
+    /** Grows up to the maximum call depth of the interpreter. */
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+    private Upvalue openUpvalues = null;
+
+    VM(Interpreter interpreter, int globalCount) {
+        this.interpreter = interpreter;
+        globals = new Object[globalCount];
+        globalNumbers = new double[globalCount];
+        Arrays.fill(globals, UNDEFINED);
+        for (int i = 0; i < frames.length; i++) frames[i] = new CallFrame();
+    }
+
+    public static void run(List<Stmt> statements, Interpreter interpreter, Stdio stdio) {
+        interpreter.stdio = stdio;
+        try {
+            var compiler = new BytecodeCompiler();
+            var script = compiler.compile(statements);
+            var vm = new VM(interpreter, compiler.globalCount());
+            var closure = new Closure(vm, script, new Upvalue[0]);
+            vm.invoke(closure, closure, LoxCallable.NO_ARGUMENTS, null);
+        } catch (Interpreter.Exit exit) {
+            stdio.exit(exit.code);
+        } catch (LoxError error) {
+            stdio.errorAtToken(error.token, error.getMessage());
+        }
+    }
+
+    /**
+     * Call a closure from Java (natives, tree-walk code, properties), running a nested dispatch loop.
+     */
+    Object invoke(Closure closure, Object slot0, Object[] arguments, Token leftPar) {
+        int base = sp;
+        try {
+            ensureStack();
+            push(slot0);
+            for (var argument : arguments) push(argument);
+            pushFrame(closure, base, leftPar);
+            return run(frameCount - 1);
+        } catch (LoxError error) {
+            // Unwind this invocation, the caller reports
+            closeUpvalues(base);
+            while (frameCount > 0 && frames[frameCount - 1].base >= base) frameCount--;
+            Arrays.fill(stack, base, sp, null);
+            sp = base;
+            throw error;
+        }
+    }
+
+    private void ensureStack() {
+        if (sp + FRAME_STACK > stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+            numbers = Arrays.copyOf(numbers, numbers.length * 2);
+        }
+    }
+
+    private void pushFrame(Closure closure, int base, Token leftPar) {
+        // The frame of the script is not a call
+        if (frameCount - 1 == interpreter.maxDepth)
+            throw new LoxError(leftPar, "Stack overflow.");
+        if (leftPar != null) interpreter.step(leftPar); // not for the script itself
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frames.length * 2);
+            for (int i = frameCount; i < frames.length; i++) frames[i] = new CallFrame();
+        }
+        var frame = frames[frameCount++];
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = base;
+        ensureStack();
+    }
+
+    /**
+     * Push a value coming from outside the stack: numbers are unboxed.
+     */
+    private void push(Object value) {
+        if (value instanceof Double d) {
+            numbers[sp] = d;
+            stack[sp++] = UNBOXED;
+        } else {
+            stack[sp++] = value;
+        }
+    }
+
+    /**
+     * The value of a stack slot leaving the stack: numbers are boxed.
+     */
+    private Object box(int slot) {
+        var value = stack[slot];
+        return value == UNBOXED ? (Object) numbers[slot] : value;
+    }
+
+    private boolean isTruthyAt(int slot) {
+        var value = stack[slot];
+        return value == UNBOXED ? numbers[slot] != 0 : isTruthy(value);
+    }
+
+    private Upvalue captureUpvalue(int index) {
+        Upvalue previous = null;
+        var upvalue = openUpvalues;
+        while (upvalue != null && upvalue.index > index) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+        if (upvalue != null && upvalue.index == index) return upvalue;
+
+        var created = new Upvalue(index);
+        created.next = upvalue;
+        if (previous == null) openUpvalues = created;
+        else previous.next = created;
+        return created;
+    }
+
+    private void closeUpvalues(int last) {
+        while (openUpvalues != null && openUpvalues.index >= last) {
+            var upvalue = openUpvalues;
+            upvalue.closed = box(upvalue.index);
+            upvalue.index = -1;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    private static LoxError uninitialized(Token name) {
+        return new LoxError(name, "variable '%s' is uninitialized.".formatted(name.lexeme()));
+    }
+
+    /**
+     * Run until the frame at exitDepth returns.
+     */
+    private Object run(int exitDepth) {
+        var frame = frames[frameCount - 1];
+        byte[] code = frame.closure.proto.chunk.code;
+        Object[] constants = frame.closure.proto.chunk.constants;
+        Token[] tokens = frame.closure.proto.chunk.tokens;
+        int ip = frame.ip;
+        int base = frame.base;
+
+        while (true) {
+            int opStart = ip;
+            byte op = code[ip++];
+            switch (op) {
+                case CONSTANT -> {
+                    push(constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)]);
+                    ip += 2;
+                }
+                case NIL -> stack[sp++] = null;
+                case TRUE -> stack[sp++] = true;
+                case FALSE -> stack[sp++] = false;
+                case POP -> stack[--sp] = null;
+                case GET_LOCAL -> {
+                    int slot = base + (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    ip += 2;
+                    var value = stack[slot];
+                    if (value == Environment.UNINITIALIZED) throw uninitialized(tokens[opStart]);
+                    numbers[sp] = numbers[slot];
+                    stack[sp++] = value;
+                }
+                case SET_LOCAL -> {
+                    int slot = base + (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    ip += 2;
+                    stack[slot] = stack[sp - 1];
+                    numbers[slot] = numbers[sp - 1];
+                }
+                case GET_UPVALUE -> {
+                    var upvalue = frame.closure.upvalues[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    if (upvalue.index >= 0) {
+                        numbers[sp] = numbers[upvalue.index];
+                        stack[sp++] = stack[upvalue.index];
+                    } else {
+                        push(upvalue.closed);
+                    }
+                    if (stack[sp - 1] == Environment.UNINITIALIZED) throw uninitialized(tokens[opStart]);
+                }
+                case SET_UPVALUE -> {
+                    var upvalue = frame.closure.upvalues[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    if (upvalue.index >= 0) {
+                        stack[upvalue.index] = stack[sp - 1];
+                        numbers[upvalue.index] = numbers[sp - 1];
+                    } else {
+                        upvalue.closed = box(sp - 1);
+                    }
+                }
+                case GET_GLOBAL -> {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    var value = globals[slot];
+                    if (value == UNDEFINED)
+                        throw new LoxError(tokens[opStart],
+                                "Undefined identifier '%s'.".formatted(tokens[opStart].lexeme()));
+                    if (value == Environment.UNINITIALIZED) throw uninitialized(tokens[opStart]);
+                    numbers[sp] = globalNumbers[slot];
+                    stack[sp++] = value;
+                }
+                case SET_GLOBAL -> {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    if (globals[slot] == UNDEFINED)
+                        throw new LoxError(tokens[opStart],
+                                "Undefined identifier '%s'.".formatted(tokens[opStart].lexeme()));
+                    globals[slot] = stack[sp - 1];
+                    globalNumbers[slot] = numbers[sp - 1];
+                }
+                case DEFINE_GLOBAL -> {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    globals[slot] = stack[--sp];
+                    globalNumbers[slot] = numbers[sp];
+                    stack[sp] = null;
+                }
+                case GET_PROPERTY -> {
+                    var get = (Expr.Get) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    frame.ip = ip;
+                    // May run a getter, hence grow the stack
+                    var value = interpreter.getProperty(box(sp - 1), get);
+                    sp--;
+                    push(value);
+                }
+                case SET_PROPERTY -> {
+                    var set = (Expr.Set) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    var value = box(--sp);
+                    stack[sp] = null;
+                    if (!(stack[sp - 1] instanceof LoxInstance instance))
+                        throw new LoxError(set.name, "Left side of '.%s' is not an instance".formatted(set.name.lexeme()));
+                    stack[sp - 1] = instance;
+                    sp--;
+                    push(set.cache.set(instance, set.name, value));
+                }
+                case GET_SUPER -> {
+                    var expr = (Expr.Super) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    var self = (LoxInstance) stack[sp - 1];
+                    stack[sp - 1] = self.getSuper(expr);
+                }
+                case EQUAL, NOT_EQUAL -> {
+                    boolean equal;
+                    if (stack[sp - 1] == UNBOXED && stack[sp - 2] == UNBOXED) {
+                        // Same as Double.equals
+                        equal = Double.doubleToLongBits(numbers[sp - 2]) == Double.doubleToLongBits(numbers[sp - 1]);
+                    } else {
+                        equal = areEqual(box(sp - 2), box(sp - 1));
+                    }
+                    stack[--sp] = null;
+                    stack[sp - 1] = op == EQUAL == equal;
+                }
+                case GREATER, GREATER_EQUAL, LESS, LESS_EQUAL -> {
+                    if (stack[sp - 1] == UNBOXED && stack[sp - 2] == UNBOXED) {
+                        double left = numbers[sp - 2];
+                        double right = numbers[--sp];
+                        stack[sp - 1] = switch (op) {
+                            case GREATER -> left > right;
+                            case GREATER_EQUAL -> left >= right;
+                            case LESS -> left < right;
+                            default -> left <= right;
+                        };
+                    } else {
+                        binary(op, tokens[opStart]);
+                    }
+                }
+                case ADD, SUBTRACT, MULTIPLY -> {
+                    if (stack[sp - 1] == UNBOXED && stack[sp - 2] == UNBOXED) {
+                        double right = numbers[--sp];
+                        numbers[sp - 1] = switch (op) {
+                            case ADD -> numbers[sp - 1] + right;
+                            case SUBTRACT -> numbers[sp - 1] - right;
+                            default -> numbers[sp - 1] * right;
+                        };
+                    } else {
+                        binary(op, tokens[opStart]);
+                    }
+                }
+                case DIVIDE, MODULO -> {
+                    if (stack[sp - 1] == UNBOXED && stack[sp - 2] == UNBOXED && numbers[sp - 1] != 0) {
+                        double right = numbers[--sp];
+                        numbers[sp - 1] = op == DIVIDE ? numbers[sp - 1] / right : numbers[sp - 1] % right;
+                    } else {
+                        binary(op, tokens[opStart]);
+                    }
+                }
+                case POWER -> binary(op, tokens[opStart]);
+                case NOT -> stack[sp - 1] = !isTruthyAt(sp - 1);
+                case NEGATE -> {
+                    if (stack[sp - 1] == UNBOXED) numbers[sp - 1] = -numbers[sp - 1];
+                    else number(stack[sp - 1], tokens[opStart], "right operand");
+                }
+                case PRINT -> {
+                    interpreter.stdio.print(box(--sp));
+                    stack[sp] = null;
+                }
+                case JUMP -> ip += 2 + (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                case JUMP_IF_FALSE -> {
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += isTruthyAt(sp - 1) ? 2 : 2 + offset;
+                }
+                case JUMP_IF_TRUE -> {
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += isTruthyAt(sp - 1) ? 2 + offset : 2;
+                }
+                case LOOP -> {
+                    interpreter.step(tokens[opStart]);
+                    ip += 2 - (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                }
+                case GET_METHOD -> {
+                    var call = (Expr.Call) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    frame.ip = ip;
+                    var get = (Expr.Get) call.callee;
+                    if (!(stack[sp - 1] instanceof LoxInstance instance
+                            && call.cache.method(instance, get.name, call.leftPar, call.arguments.size())
+                                    instanceof VmMethod)) {
+                        // Not a method: call the property value, as GET_PROPERTY then CALL
+                        var value = interpreter.getProperty(box(sp - 1), get);
+                        sp--;
+                        // An instance is not callable, but INVOKE would take it for the receiver
+                        push(value instanceof LoxInstance ? null : value);
+                    }
+                }
+                case CALL, INVOKE, SUPER_INVOKE -> {
+                    Object constant = null;
+                    if (op != CALL) {
+                        constant = constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        ip += 2;
+                    }
+                    int argc = code[ip++] & 0xff;
+                    var token = tokens[opStart];
+                    int calleeSlot = sp - 1 - argc;
+                    frame.ip = ip;
+                    LoxCallable function = null;
+                    Closure closure = null;
+                    if (op == INVOKE && stack[calleeSlot] instanceof LoxInstance instance) {
+                        // Receiver kept by GET_METHOD, it is self (slot 0) of the method
+                        var call = (Expr.Call) constant;
+                        var method = call.cache.method(instance, ((Expr.Get) call.callee).name, token, argc);
+                        closure = ((VmMethod) method).closure;
+                    } else if (op == SUPER_INVOKE) {
+                        var self = (LoxInstance) stack[calleeSlot];
+                        var method = self.superMethod((Expr.Super) constant);
+                        callable(method, token, argc);
+                        if (method instanceof VmMethod vmMethod) closure = vmMethod.closure;
+                        else function = method.bind(self);
+                    } else if ((function = callable(box(calleeSlot), token, argc)) instanceof Closure c) {
+                        closure = c;
+                    } else if (function instanceof BoundMethod bound) {
+                        stack[calleeSlot] = bound.receiver;
+                        closure = bound.method;
+                    } else if (function instanceof LoxClass klass
+                            && klass.init instanceof VmMethod init) {
+                        stack[calleeSlot] = new LoxInstance(klass);
+                        closure = init.closure;
+                    }
+                    if (closure != null && code[ip] == RETURN) {
+                        // Tail call: the callee and its arguments replace the frame of the caller
+                        interpreter.step(token);
+                        closeUpvalues(base);
+                        System.arraycopy(stack, calleeSlot, stack, base, argc + 1);
+                        System.arraycopy(numbers, calleeSlot, numbers, base, argc + 1);
+                        Arrays.fill(stack, base + argc + 1, sp, null);
+                        sp = base + argc + 1;
+                        frame.closure = closure;
+                        code = closure.proto.chunk.code;
+                        constants = closure.proto.chunk.constants;
+                        tokens = closure.proto.chunk.tokens;
+                        ip = 0;
+                    } else if (closure != null) {
+                        pushFrame(closure, calleeSlot, token);
+                        frame = frames[frameCount - 1];
+                        code = closure.proto.chunk.code;
+                        constants = closure.proto.chunk.constants;
+                        tokens = closure.proto.chunk.tokens;
+                        ip = 0;
+                        base = calleeSlot;
+                    } else {
+                        // Natives, classes without initializer...
+                        var arguments = new Object[argc];
+                        for (int i = 0; i < argc; i++) arguments[i] = box(calleeSlot + 1 + i);
+                        var result = function.call(interpreter, token, arguments);
+                        Arrays.fill(stack, calleeSlot, sp, null);
+                        sp = calleeSlot;
+                        push(result);
+                    }
+                }
+                case CLOSURE -> {
+                    var proto = (Proto) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    if (proto.upvalueCount == 0) {
+                        // Nothing captured: the same closure each time
+                        if (proto.shared == null) proto.shared = new Closure(this, proto, new Upvalue[0]);
+                        stack[sp++] = proto.shared;
+                    } else {
+                        var upvalues = new Upvalue[proto.upvalueCount];
+                        for (int i = 0; i < upvalues.length; i++) {
+                            boolean isLocal = code[ip] == 1;
+                            int index = ((code[ip + 1] & 0xff) << 8) | (code[ip + 2] & 0xff);
+                            ip += 3;
+                            upvalues[i] = isLocal ? captureUpvalue(base + index) : frame.closure.upvalues[index];
+                        }
+                        stack[sp++] = new Closure(this, proto, upvalues);
+                    }
+                }
+                case CLOSE_UPVALUE -> {
+                    closeUpvalues(sp - 1);
+                    stack[--sp] = null;
+                }
+                case RETURN -> {
+                    var result = stack[sp - 1];
+                    double number = numbers[sp - 1];
+                    closeUpvalues(base);
+                    Arrays.fill(stack, base, sp, null);
+                    sp = base;
+                    frameCount--;
+                    if (frameCount == exitDepth) return result == UNBOXED ? (Object) number : result;
+                    numbers[sp] = number;
+                    stack[sp++] = result;
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.proto.chunk.code;
+                    constants = frame.closure.proto.chunk.constants;
+                    tokens = frame.closure.proto.chunk.tokens;
+                    ip = frame.ip;
+                    base = frame.base;
+                }
+                case CLASS -> {
+                    var klass = (Stmt.Class) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    int scope = base + (((code[ip + 2] & 0xff) << 8) | (code[ip + 3] & 0xff));
+                    ip += 4;
+                    var loxClass = defineClass(klass, scope);
+                    stack[sp++] = loxClass;
+                }
+                case CHECK_TYPE -> {
+                    var check = (Expr.TypeCheck) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    var value = box(sp - 1);
+                    if (!check.type.isInstance(value))
+                        throw new TypeMismatchError(check.name, check.type, value);
+                }
+                default -> throw new IllegalStateException("Unknown opcode " + op);
+            }
+        }
+    }
+
+    /**
+     * Binary operation on the two values on top of the stack, when they are not both numbers
+     * (or on division by zero and power).
+     */
+    private void binary(byte op, Token operator) {
+        var right = box(--sp);
+        stack[sp] = null;
+        var result = operate(op, box(sp - 1), right, operator);
+        sp--;
+        push(result);
+    }
+
+    /**
+     * Build a class from its scope on the stack (superclasses, then class methods)
+     * and the method closures above it, which are popped.
+     */
+    private LoxClass defineClass(Stmt.Class klass, int scope) {
+        int methodCount = klass.methods.methods.size();
+        sp -= methodCount;
+        Map<Stmt.Function, Closure> closures = new IdentityHashMap<>();
+        for (int i = 0; i < methodCount; i++) {
+            closures.put(klass.methods.methods.get(i), (Closure) stack[sp + i]);
+            stack[sp + i] = null;
+        }
+
+        List<LoxClass> superclasses = new ArrayList<>();
+        int slot = scope;
+        for (var superclass : klass.superclasses) {
+            superclasses.add(downcast(box(slot++), LoxClass.class, "class", superclass.name, "superclass"));
+        }
+        Map<String, LoxCallable> classMethods = new HashMap<>();
+        for (var classMethod : klass.classMethods) {
+            classMethods.put(classMethod.name.lexeme(), (LoxCallable) stack[slot++]);
+        }
+        return new LoxClass(klass.name.lexeme(), superclasses, classMethods, klass,
+                (method, parent) -> new VmMethod(method, parent, closures.get(method)));
+    }
+
+    private static Object operate(byte op, Object left, Object right, Token operator) {
+        if (op == ADD)
+            return left instanceof Double l && right instanceof Double r ? (Object) (l + r) : add(left, right, operator);
+        if (left instanceof String s && op >= GREATER && op <= LESS_EQUAL) {
+            int comparison = s.compareTo(downcast(right, String.class, "string", operator, "right operand"));
+            return switch (op) {
+                case GREATER -> comparison > 0;
+                case GREATER_EQUAL -> comparison >= 0;
+                case LESS -> comparison < 0;
+                default -> comparison <= 0;
+            };
+        }
+        double l = leftNumber(left, operator);
+        double r = op == DIVIDE || op == MODULO ? divisor(right, operator) : number(right, operator, "right operand");
+        return switch (op) {
+            case GREATER -> l > r;
+            case GREATER_EQUAL -> l >= r;
+            case LESS -> l < r;
+            case LESS_EQUAL -> l <= r;
+            case SUBTRACT -> l - r;
+            case MULTIPLY -> l * r;
+            case DIVIDE -> l / r;
+            case MODULO -> l % r;
+            case POWER -> Math.pow(l, r);
+            default -> throw new IllegalStateException("Unexpected operator " + op);
+        };
+    }
+
+    private static double leftNumber(Object left, Token operator) {
+        if (left instanceof Double d) return d;
+        throw notApplicable(operator, left);
+    }
+
+    private static double divisor(Object right, Token operator) {
+        double divisor = number(right, operator, "right operand");
+        if (divisor == 0)
+            throw new LoxError(operator, "Division by zero.");
+        return divisor;
+    }
+
+    private static Object add(Object left, Object right, Token operator) {
+        if (left instanceof Double d) {
+            if (right instanceof String s) return Stdio.stringify(d) + s;
+            throw new LoxError(operator, "Number cannot be added with %s.".formatted(typeName(right)));
+        }
+        if (left instanceof String s) return s + Stdio.stringify(right);
+        throw notApplicable(operator, left);
+    }
+}
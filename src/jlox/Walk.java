@@ -19,6 +19,108 @@ public class Walk implements Walker.AstVisitor {
         public void InjectWalker(WalkerData walker) { this.walker = walker; }
     }
 
+    /**
+     * A pass replacing expressions: on leaving a node, its operands are replaced by their rewritten form.
+     */
+    abstract static class Rewrite extends Base {
+
+        /**
+         * @return the expression to use instead, whose operands are already rewritten.
+         */
+        protected abstract Expr rewrite(Expr expr);
+
+        // ============ Expressions ============
+
+        @Override
+        public void leaveAssignExpr(Expr.Assign assign) {
+            assign.value = rewrite(assign.value);
+        }
+
+        @Override
+        public void leaveBinaryExpr(Expr.Binary binary) {
+            binary.left = rewrite(binary.left);
+            binary.right = rewrite(binary.right);
+        }
+
+        @Override
+        public void leaveCallExpr(Expr.Call call) {
+            call.callee = rewrite(call.callee);
+            call.arguments.replaceAll(this::rewrite);
+        }
+
+        @Override
+        public void leaveGetExpr(Expr.Get get) {
+            get.object = rewrite(get.object);
+        }
+
+        @Override
+        public void leaveGroupingExpr(Expr.Grouping grouping) {
+            grouping.expression = rewrite(grouping.expression);
+        }
+
+        @Override
+        public void leaveSetExpr(Expr.Set set) {
+            set.object = rewrite(set.object);
+            set.value = rewrite(set.value);
+        }
+
+        @Override
+        public void leaveTernaryExpr(Expr.Ternary ternary) {
+            ternary.left = rewrite(ternary.left);
+            ternary.middle = rewrite(ternary.middle);
+            ternary.right = rewrite(ternary.right);
+        }
+
+        @Override
+        public void leaveTypeCheckExpr(Expr.TypeCheck typeCheck) {
+            typeCheck.value = rewrite(typeCheck.value);
+        }
+
+        @Override
+        public void leaveUnaryExpr(Expr.Unary unary) {
+            unary.right = rewrite(unary.right);
+        }
+
+        // ============ Statements ============
+
+        @Override
+        public void leaveExpressionStmt(Stmt.Expression stmt) {
+            stmt.expression = rewrite(stmt.expression);
+        }
+
+        @Override
+        public void leaveIfStmt(Stmt.If stmt) {
+            stmt.condition = rewrite(stmt.condition);
+        }
+
+        @Override
+        public void leaveLastStmt(Stmt.Last stmt) {
+            stmt.expression = rewrite(stmt.expression);
+        }
+
+        @Override
+        public void leavePrintStmt(Stmt.Print stmt) {
+            stmt.expression = rewrite(stmt.expression);
+        }
+
+        @Override
+        public void leaveReturnStmt(Stmt.Return stmt) {
+            if (stmt.value != null)
+                stmt.value = rewrite(stmt.value);
+        }
+
+        @Override
+        public void leaveVarStmt(Stmt.Var var) {
+            if (var.initializer != null)
+                var.initializer = rewrite(var.initializer);
+        }
+
+        @Override
+        public void leaveWhileStmt(Stmt.While stmt) {
+            stmt.condition = rewrite(stmt.condition);
+        }
+    }
+
     // ============ Automatically generated by the compiler ============
 
     @Override
@@ -96,6 +198,26 @@ public class Walk implements Walker.AstVisitor {
 
     }
 
+    @Override
+    public void enterInlineExpr(Expr.Inline inline) {
+
+    }
+
+    @Override
+    public void leaveInlineExpr(Expr.Inline inline) {
+
+    }
+
+    @Override
+    public void enterInvariantExpr(Expr.Invariant invariant) {
+
+    }
+
+    @Override
+    public void leaveInvariantExpr(Expr.Invariant invariant) {
+
+    }
+
     @Override
     public void enterLambdaExpr(Expr.Lambda lambda) {
 
@@ -0,0 +1,145 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Capture analysis of the closures, walked last: the variables must not move anymore.
+ * <p>
+ * A function or lambda captures the free variables of its body only (see Environment.capture), rather
+ * than the whole scope chain where it is created, which would keep every enclosing variable alive
+ * as long as the closure. The variables of the body declared outside are resolved to the scope
+ * of these captures, which lies beyond the frame (and beyond the scope of self for methods).
+ * A closure nested in a function that does not declare the variable gets it from the captures
+ * of that function, which captures it in turn. A closure capturing nothing is created once.
+ */
+public class WalkCapture extends Walk.Base {
+
+    private static class Closure {
+        final Closure parent;
+        /** scopes between the frame and the captures: 2 for methods (scope of self), 1 otherwise */
+        final int base;
+        /** depth in the parent of the scope creating the closure */
+        final int creation;
+        /** scopes between the current scope and the frame */
+        int depth = 0;
+        final List<Environment.Capture> captures = new ArrayList<>();
+
+        Closure(Closure parent, int base, int creation) {
+            this.parent = parent;
+            this.base = base;
+            this.creation = creation;
+        }
+    }
+
+    /** closure being walked, the program at top level (nothing captured) */
+    private Closure closure = new Closure(null, 0, 0);
+
+    @Override
+    public void enterClassStmt(Stmt.Class stmt) {
+        closure.depth++;
+    }
+
+    @Override
+    public void leaveClassStmt(Stmt.Class stmt) {
+        closure.depth--;
+    }
+
+    @Override
+    public void enterMethodsStmt(Stmt.Methods methods) {
+        closure.depth++;
+    }
+
+    @Override
+    public void leaveMethodsStmt(Stmt.Methods methods) {
+        closure.depth--;
+    }
+
+    /**
+     * Methods are created in the class scope, outside the scope of self.
+     */
+    @Override
+    public void enterFunctionStmt(Stmt.Function stmt) {
+        boolean isMethod = stmt.kind.equals("method") && !stmt.isClass;
+        closure = isMethod
+                ? new Closure(closure, 2, closure.depth - 1)
+                : new Closure(closure, 1, closure.depth);
+    }
+
+    @Override
+    public void leaveFunctionStmt(Stmt.Function stmt) {
+        stmt.captures = List.copyOf(closure.captures);
+        closure = closure.parent;
+    }
+
+    @Override
+    public void enterLambdaExpr(Expr.Lambda lambda) {
+        closure = new Closure(closure, 1, closure.depth);
+    }
+
+    @Override
+    public void leaveLambdaExpr(Expr.Lambda lambda) {
+        lambda.captures = List.copyOf(closure.captures);
+        closure = closure.parent;
+    }
+
+    @Override
+    public void enterBlockStmt(Stmt.Block block) {
+        if (block.scoped) closure.depth++;
+    }
+
+    @Override
+    public void leaveBlockStmt(Stmt.Block block) {
+        if (block.scoped) closure.depth--;
+    }
+
+    @Override
+    public void enterVariableExpr(Expr.Variable variable) {
+        if (isFree(variable.hops)) {
+            variable.slot = capture(closure, variable.hops - closure.depth - closure.base, variable.slot, variable.name);
+            variable.hops = closure.depth + closure.base;
+        }
+    }
+
+    @Override
+    public void enterAssignExpr(Expr.Assign assign) {
+        if (isFree(assign.hops)) {
+            assign.slot = capture(closure, assign.hops - closure.depth - closure.base, assign.slot, assign.name);
+            assign.hops = closure.depth + closure.base;
+        }
+    }
+
+    /**
+     * Self is captured by the lambdas and functions of a method.
+     */
+    @Override
+    public void enterSuperExpr(Expr.Super expr) {
+        if (isFree(expr.hops)) {
+            expr.slot = capture(closure, expr.hops - closure.depth - closure.base, expr.slot, expr.keyword);
+            expr.hops = closure.depth + closure.base;
+        }
+    }
+
+    private boolean isFree(int hops) {
+        return closure.parent != null && hops >= closure.depth + closure.base;
+    }
+
+    /**
+     * @param hops scopes to go up from the scope creating the closure
+     * @return the index of the symbol in the captures of the closure
+     */
+    private static int capture(Closure closure, int hops, int slot, Token name) {
+        var parent = closure.parent;
+        // Declared in the parent (or in a scope still alive at top level), else captured by the parent too
+        int parentCaptures = closure.creation + parent.base;
+        var capture = parent.parent == null || hops < parentCaptures
+                ? new Environment.Capture(name, hops, slot)
+                : new Environment.Capture(name, parentCaptures, capture(parent, hops - parentCaptures, slot, name));
+        for (int i = 0; i < closure.captures.size(); i++) {
+            var captured = closure.captures.get(i);
+            if (captured.hops() == capture.hops() && captured.slot() == capture.slot()) return i;
+        }
+        closure.captures.add(capture);
+        return closure.captures.size() - 1;
+    }
+}
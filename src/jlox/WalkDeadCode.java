@@ -0,0 +1,110 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Dead code elimination, walked once the analysis succeeded.
+ * <p>
+ * Removes the statements that cannot run or have no effect: statements following a return,
+ * break or continue (also in an enclosing block), the branch of an if whose condition folded
+ * to a literal (see WalkFold), loops whose condition folded to a falsy literal, expression
+ * statements reduced to a literal, and declarations of local functions and variables never read
+ * (flagged unused by WalkSymbol). A variable that is assigned is kept, and the initializer
+ * of a removed variable is still evaluated unless it is a literal or a lambda.
+ */
+public class WalkDeadCode extends Walk.Base {
+
+    private final WalkSymbol symbols;
+    /** declaration tokens of the assigned variables */
+    private final Set<Token> assigned = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    public WalkDeadCode(WalkSymbol symbols) {
+        this.symbols = symbols;
+    }
+
+    @Override
+    public void leaveAssignExpr(Expr.Assign assign) {
+        assigned.add(assign.target);
+    }
+
+    /**
+     * A sequence is left after its statements: the assignments in their scope are known.
+     */
+    @Override
+    public void leaveSequence(List<Stmt> stmts) {
+        var kept = new ArrayList<Stmt>(stmts.size());
+        for (var stmt : stmts) {
+            stmt = prune(stmt);
+            if (stmt == null) continue;
+            kept.add(stmt);
+            // What follows is unreachable
+            if (jumps(stmt)) break;
+        }
+        stmts.clear();
+        stmts.addAll(kept);
+    }
+
+    @Override
+    public void leaveIfStmt(Stmt.If stmt) {
+        stmt.then = orEmpty(prune(stmt.then));
+        stmt.else_ = prune(stmt.else_);
+    }
+
+    @Override
+    public void leaveWhileStmt(Stmt.While stmt) {
+        if (stmt.body != null)
+            stmt.body = orEmpty(prune(stmt.body));
+    }
+
+    @Override
+    public void leaveForBlockStmt(Stmt.ForBlock stmt) {
+        stmt.body = orEmpty(prune(stmt.body));
+        stmt.updater = orEmpty(prune(stmt.updater));
+    }
+
+    /**
+     * @return the statement to run instead, null if nothing.
+     */
+    private Stmt prune(Stmt stmt) {
+        if (stmt instanceof Stmt.If ifStmt && ifStmt.condition instanceof Expr.Literal condition) {
+            return Interpreter.isTruthy(condition.value) ? ifStmt.then : ifStmt.else_;
+        } else if (stmt instanceof Stmt.While whileStmt && whileStmt.condition instanceof Expr.Literal condition) {
+            return Interpreter.isTruthy(condition.value) ? stmt : null;
+        } else if (stmt instanceof Stmt.Expression expr) {
+            return expr.expression instanceof Expr.Literal ? null : stmt;
+        } else if (stmt instanceof Stmt.Function function) {
+            return symbols.isUnused(function.name) ? null : stmt;
+        } else if (stmt instanceof Stmt.Var var && symbols.isUnused(var.name) && !assigned.contains(var.name)) {
+            var initializer = var.initializer;
+            return initializer == null || initializer instanceof Expr.Literal || initializer instanceof Expr.Lambda
+                    ? null
+                    : new Stmt.Expression(initializer);
+        }
+        return stmt;
+    }
+
+    private static Stmt orEmpty(Stmt stmt) {
+        if (stmt != null) return stmt;
+        var block = new Stmt.Block(new ArrayList<>());
+        block.scoped = false;
+        return block;
+    }
+
+    /**
+     * @return whether the statement always ends with a return, break or continue.
+     */
+    private static boolean jumps(Stmt stmt) {
+        if (stmt instanceof Stmt.Return || stmt instanceof Stmt.Keyword) {
+            return true;
+        } else if (stmt instanceof Stmt.Block block) {
+            return !block.statements.isEmpty() && jumps(block.statements.get(block.statements.size() - 1));
+        } else if (stmt instanceof Stmt.If ifStmt) {
+            return jumps(ifStmt.then) && ifStmt.else_ != null && jumps(ifStmt.else_);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,73 @@
+package jlox;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Constant folding, once WalkSymbol has resolved the variables.
+ * <p>
+ * On leaving a node, its operands are replaced by their folded form: groupings are removed,
+ * operators applied to literals become literals, conditions on a literal select their branch,
+ * and constants (const variables initialised with a literal) are replaced by their value.
+ * Literals are computed by an interpreter, so that folding has the semantics of the runtime:
+ * an expression failing there (division by zero, wrong operand type...) is kept to fail at runtime.
+ */
+public class WalkFold extends Walk.Rewrite {
+
+    private final Interpreter evaluator = new Interpreter();
+    /** value of the constants, by declaration token */
+    private final Map<Token, Object> constants = new IdentityHashMap<>();
+
+    /**
+     * @return the folded form of an expression whose operands are already folded.
+     */
+    Expr fold(Expr expr) {
+        if (expr instanceof Expr.Grouping grouping) {
+            return fold(grouping.expression);
+        } else if (expr instanceof Expr.Variable variable) {
+            if (variable.target != null && constants.containsKey(variable.target))
+                return new Expr.Literal(constants.get(variable.target));
+        } else if (expr instanceof Expr.Unary unary) {
+            if (unary.right instanceof Expr.Literal)
+                return evaluate(unary);
+        } else if (expr instanceof Expr.Binary binary) {
+            if (binary.left instanceof Expr.Literal left) {
+                // The left operand has no side effect: short circuits are decided now
+                boolean truthy = Interpreter.isTruthy(left.value);
+                var type = binary.operator.type();
+                if (type == TokenType.AND) return truthy ? binary.right : left;
+                if (type == TokenType.OR) return truthy ? left : binary.right;
+                if (type == TokenType.COMMA) return binary.right;
+                if (binary.right instanceof Expr.Literal)
+                    return evaluate(binary);
+            }
+        } else if (expr instanceof Expr.Ternary ternary) {
+            if (ternary.left instanceof Expr.Literal condition)
+                return Interpreter.isTruthy(condition.value) ? ternary.middle : ternary.right;
+        } else if (expr instanceof Expr.TypeCheck typeCheck) {
+            if (typeCheck.value instanceof Expr.Literal)
+                return evaluate(typeCheck);
+        }
+        return expr;
+    }
+
+    private Expr evaluate(Expr expr) {
+        try {
+            return new Expr.Literal(evaluator.evaluate(expr));
+        } catch (LoxError error) {
+            return expr;
+        }
+    }
+
+    @Override
+    protected Expr rewrite(Expr expr) {
+        return fold(expr);
+    }
+
+    @Override
+    public void leaveVarStmt(Stmt.Var var) {
+        super.leaveVarStmt(var);
+        if (var.isReadonly && var.initializer instanceof Expr.Literal literal)
+            constants.put(var.name, literal.value);
+    }
+}
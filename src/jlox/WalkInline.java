@@ -0,0 +1,316 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Function inlining, once WalkSymbol has resolved the variables.
+ * <p>
+ * A call to a small function is replaced by a copy of its body: functions declared with
+ * {@code fun} (not methods) whose body is an expression or a single return, and lambdas
+ * called where they are written. Property functions are inlined where they are read.
+ * The body must not be recursive, declare a lambda or use super, and its size is limited
+ * to {@link #MAX_SIZE} nodes. Bodies are copied as they are when the function is declared,
+ * calls already inlined included, and nothing is inlined again in a copy.
+ * <p>
+ * When every argument can be read in place of its parameter (a literal, or an initialised variable
+ * that a pure body cannot change) the parameters are substituted, and nothing is left of the call.
+ * Otherwise the arguments are evaluated once, in order, into slots reserved in the scope of the call
+ * ({@link Expr.Inline}). The free variables of the body (the closure of the function) are resolved
+ * again from the call site: the function being visible there, its scope encloses the call.
+ * Copies are folded as they are built (see WalkFold).
+ */
+public class WalkInline extends Walk.Rewrite {
+
+    /** Maximum number of nodes in the body of an inlined function. */
+    static final int MAX_SIZE = 16;
+
+    private final WalkFold fold;
+    /** scopes of the analysis, where the parameters of the inlined calls get slots */
+    private final SymbolTable environment;
+    /** inlinable functions, by name token where declared */
+    private final Map<Token, Stmt.Function> functions = new IdentityHashMap<>();
+    /** declaration tokens of the variables declared without a value */
+    private final Set<Token> uninitialized = Collections.newSetFromMap(new IdentityHashMap<>());
+    /** declaration tokens of the property functions */
+    private final Set<Token> properties = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    public WalkInline(WalkFold fold, SymbolTable environment) {
+        this.fold = fold;
+        this.environment = environment;
+    }
+
+    @Override
+    public void leaveFunctionStmt(Stmt.Function stmt) {
+        if (stmt.isProperty) properties.add(stmt.name);
+        var body = bodyOf(stmt.body);
+        if (stmt.kind.equals("function") && body != null && isInlinable(body, stmt.name))
+            functions.put(stmt.name, stmt);
+    }
+
+    @Override
+    public void leaveVarStmt(Stmt.Var var) {
+        super.leaveVarStmt(var);
+        if (var.initializer == null) uninitialized.add(var.name);
+    }
+
+    @Override
+    protected Expr rewrite(Expr expr) {
+        if (expr instanceof Expr.Call call) {
+            if (call.callee instanceof Expr.Variable callee && functions.containsKey(callee.target)) {
+                var function = functions.get(callee.target);
+                if (!function.isProperty && call.arguments.size() == function.parameters.size())
+                    return inline(call, function.parameters, bodyOf(function.body), callee.hops);
+            } else if (call.callee instanceof Expr.Lambda lambda && call.arguments.size() == lambda.parameters.size()) {
+                var body = bodyOf(lambda.body);
+                // The lambda is created in the scope of the call
+                if (body != null && isInlinable(body, null))
+                    return inline(call, lambda.parameters, body, 0);
+            }
+        } else if (expr instanceof Expr.Variable variable && functions.containsKey(variable.target)) {
+            var function = functions.get(variable.target);
+            if (function.isProperty)
+                return new Copy(function.parameters, List.of(), variable.hops, -1).copy(bodyOf(function.body));
+        }
+        return expr;
+    }
+
+    /**
+     * @param hops from the call to the scope the function is declared in
+     */
+    private Expr inline(Expr.Call call, List<Token> parameters, Expr body, int hops) {
+        boolean substituted = !assignsParameter(body, parameters)
+                && call.arguments.stream().allMatch(argument -> isSubstitutable(argument, body));
+        if (substituted)
+            return new Copy(parameters, call.arguments, hops, -1).copy(body);
+        int slot = reserve(parameters);
+        var inline = new Expr.Inline(call, parameters, new Copy(parameters, call.arguments, hops, slot).copy(body));
+        inline.slot = slot;
+        return inline;
+    }
+
+    private boolean assignsParameter(Expr body, List<Token> parameters) {
+        var scan = new Walk.Base() {
+            boolean assigns = false;
+
+            @Override
+            public void enterAssignExpr(Expr.Assign assign) {
+                if (indexOf(parameters, assign.target) >= 0) assigns = true;
+            }
+        };
+        new Walker(List.of(scan), stdio()).walk(body);
+        return scan.assigns;
+    }
+
+    /**
+     * @return the index of the token in the list, by identity (tokens are records).
+     */
+    private static int indexOf(List<Token> tokens, Token token) {
+        for (int i = 0; i < tokens.size(); i++) {
+            if (tokens.get(i) == token) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the expression returned by a function body, null if it is not a single expression.
+     */
+    private static Expr bodyOf(Stmt body) {
+        if (body instanceof Stmt.Expression expr) {
+            return expr.expression;
+        } else if (body instanceof Stmt.Block block && block.statements.size() == 1
+                && block.statements.get(0) instanceof Stmt.Return returnStmt) {
+            return returnStmt.value;
+        }
+        return null;
+    }
+
+    /**
+     * @param name of the function, whose calls in the body are recursive (null for a lambda)
+     */
+    private static boolean isInlinable(Expr body, Token name) {
+        var size = new int[1];
+        return isInlinable(body, name, size) && size[0] <= MAX_SIZE;
+    }
+
+    private static boolean isInlinable(Expr expr, Token name, int[] size) {
+        if (++size[0] > MAX_SIZE) return false;
+        if (expr instanceof Expr.Literal) {
+            return true;
+        } else if (expr instanceof Expr.Variable variable) {
+            return name == null || variable.target != name;
+        } else if (expr instanceof Expr.Assign assign) {
+            return isInlinable(assign.value, name, size);
+        } else if (expr instanceof Expr.Unary unary) {
+            return isInlinable(unary.right, name, size);
+        } else if (expr instanceof Expr.Binary binary) {
+            return isInlinable(binary.left, name, size) && isInlinable(binary.right, name, size);
+        } else if (expr instanceof Expr.Ternary ternary) {
+            return isInlinable(ternary.left, name, size) && isInlinable(ternary.middle, name, size)
+                    && isInlinable(ternary.right, name, size);
+        } else if (expr instanceof Expr.TypeCheck typeCheck) {
+            return isInlinable(typeCheck.value, name, size);
+        } else if (expr instanceof Expr.Get get) {
+            return isInlinable(get.object, name, size);
+        } else if (expr instanceof Expr.Set set) {
+            return isInlinable(set.object, name, size) && isInlinable(set.value, name, size);
+        } else if (expr instanceof Expr.Call call) {
+            return isInlinable(call.callee, name, size)
+                    && call.arguments.stream().allMatch(argument -> isInlinable(argument, name, size));
+        } else if (expr instanceof Expr.Inline inline) {
+            return isInlinable(inline.call, name, size) && isInlinable(inline.body, name, size);
+        }
+        // Lambdas and super
+        return false;
+    }
+
+    /**
+     * An argument can replace its parameter when reading it anywhere in the body, any number of times,
+     * gives the value it had at the call.
+     */
+    private boolean isSubstitutable(Expr argument, Expr body) {
+        if (argument instanceof Expr.Literal) {
+            return true;
+        } else if (argument instanceof Expr.Variable variable) {
+            return !uninitialized.contains(variable.target) && !properties.contains(variable.target)
+                    && isPure(body);
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the expression reads variables without running code or assigning them.
+     */
+    private boolean isPure(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            return true;
+        } else if (expr instanceof Expr.Variable variable) {
+            return !properties.contains(variable.target);
+        } else if (expr instanceof Expr.Unary unary) {
+            return isPure(unary.right);
+        } else if (expr instanceof Expr.Binary binary) {
+            return isPure(binary.left) && isPure(binary.right);
+        } else if (expr instanceof Expr.Ternary ternary) {
+            return isPure(ternary.left) && isPure(ternary.middle) && isPure(ternary.right);
+        } else if (expr instanceof Expr.TypeCheck typeCheck) {
+            return isPure(typeCheck.value);
+        }
+        return false;
+    }
+
+    /**
+     * @return the first of the slots reserved for the parameters in the scope of the call.
+     */
+    private int reserve(List<Token> parameters) {
+        return environment.reserveSlots(parameters.size());
+    }
+
+    /**
+     * Copy of a body at a call site.
+     * <p>
+     * The body has no scope of its own: the variables it resolves in the scope of the function
+     * (zero hop) are the parameters and those of the calls inlined in it, which get the slots
+     * reserved at the call site. The others are in the enclosing scopes of the function,
+     * one hop less from the scope it is declared in.
+     */
+    private class Copy {
+        private final List<Token> parameters;
+        private final List<Expr> arguments;
+        /** from the call to the scope the function is declared in */
+        private final int hops;
+        /** first slot of the parameters in the scope of the call, -1 when the arguments are substituted */
+        private final int slot;
+        /** slots of the parameters of the calls inlined in the body */
+        private final Map<Token, Integer> slots = new IdentityHashMap<>();
+
+        Copy(List<Token> parameters, List<Expr> arguments, int hops, int slot) {
+            this.parameters = parameters;
+            this.arguments = arguments;
+            this.hops = hops;
+            this.slot = slot;
+        }
+
+        Expr copy(Expr expr) {
+            if (expr instanceof Expr.Literal) {
+                return expr;
+            } else if (expr instanceof Expr.Variable variable) {
+                int index = indexOf(parameters, variable.target);
+                if (slot < 0 && variable.hops == 0 && index >= 0)
+                    return substitute(arguments.get(index));
+                var copy = new Expr.Variable(variable.name);
+                copy.target = variable.target;
+                copy.hops = hops(variable.hops);
+                copy.slot = slot(variable.hops, variable.slot, index, variable.target);
+                copy.checked = variable.checked;
+                return fold.fold(copy);
+            } else if (expr instanceof Expr.Assign assign) {
+                var copy = new Expr.Assign(assign.name, copy(assign.value));
+                copy.target = assign.target;
+                copy.hops = hops(assign.hops);
+                copy.slot = slot(assign.hops, assign.slot, indexOf(parameters, assign.target), assign.target);
+                return copy;
+            } else if (expr instanceof Expr.Unary unary) {
+                return fold.fold(new Expr.Unary(unary.operator, copy(unary.right)));
+            } else if (expr instanceof Expr.Binary binary) {
+                return fold.fold(new Expr.Binary(copy(binary.left), binary.operator, copy(binary.right)));
+            } else if (expr instanceof Expr.Ternary ternary) {
+                return fold.fold(new Expr.Ternary(copy(ternary.left), ternary.leftOp,
+                        copy(ternary.middle), ternary.rightOp, copy(ternary.right)));
+            } else if (expr instanceof Expr.TypeCheck typeCheck) {
+                return fold.fold(new Expr.TypeCheck(copy(typeCheck.value), typeCheck.type, typeCheck.name));
+            } else if (expr instanceof Expr.Get get) {
+                return new Expr.Get(copy(get.object), get.name);
+            } else if (expr instanceof Expr.Set set) {
+                return new Expr.Set(copy(set.object), set.name, copy(set.value));
+            } else if (expr instanceof Expr.Call call) {
+                return copyCall(call);
+            } else if (expr instanceof Expr.Inline inline) {
+                var call = copyCall(inline.call);
+                int first = reserve(inline.parameters);
+                for (int i = 0; i < inline.parameters.size(); i++) {
+                    slots.put(inline.parameters.get(i), first + i);
+                }
+                var copy = new Expr.Inline(call, inline.parameters, copy(inline.body));
+                copy.slot = first;
+                return copy;
+            }
+            throw new IllegalStateException("Not inlinable: " + expr);
+        }
+
+        private Expr.Call copyCall(Expr.Call call) {
+            var arguments = new ArrayList<Expr>(call.arguments.size());
+            for (var argument : call.arguments) {
+                arguments.add(copy(argument));
+            }
+            return new Expr.Call(copy(call.callee), call.leftPar, arguments, call.rightPar);
+        }
+
+        private int hops(int hops) {
+            return hops == 0 ? 0 : hops - 1 + this.hops;
+        }
+
+        /**
+         * @param index of the variable in the parameters, -1 if it is not one
+         */
+        private int slot(int hops, int slot, int index, Token target) {
+            if (hops != 0) return slot;
+            return index >= 0 ? this.slot + index : slots.get(target);
+        }
+
+        private Expr substitute(Expr argument) {
+            if (argument instanceof Expr.Variable variable) {
+                var copy = new Expr.Variable(variable.name);
+                copy.target = variable.target;
+                copy.hops = variable.hops;
+                copy.slot = variable.slot;
+                copy.checked = variable.checked;
+                return copy;
+            }
+            return argument;
+        }
+    }
+}
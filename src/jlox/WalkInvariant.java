@@ -0,0 +1,313 @@
+package jlox;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+
+/**
+ * Loop-invariant code motion, walked once the analysis succeeded.
+ * <p>
+ * In a while loop (for loops included), the largest pure expressions that do not change from one
+ * iteration to the next are wrapped in an {@link Expr.Invariant}. Its first evaluation in a run
+ * of the loop is cached for the next iterations. Since the cache is filled lazily, the expression is still
+ * evaluated where it is written: errors, and iterations that do not reach it, behave as before.
+ * <p>
+ * Pure expressions are operators on literals and variables (not property functions, whose reading
+ * is a call), and string methods of string literals. A variable is invariant when the loop neither
+ * declares nor assigns it and, if the loop calls code, when it is declared in this run and only assigned
+ * by the function that declares it. Functions and classes declared in a loop are left to their own loops.
+ * A variable declared outside the analysis (an earlier REPL line, a native) may be a property: it is not
+ * invariant, and reading it calls code.
+ */
+public class WalkInvariant extends Walk.Base {
+
+    /**
+     * Declarations and assignments of the whole program, walked before the loops.
+     */
+    static class Assignments extends Walk.Base {
+        /** function or lambda declaring a variable, null at top level */
+        private final Map<Token, Object> declarations = new IdentityHashMap<>();
+        /** variables assigned by a function other than the one declaring them */
+        private final Set<Token> escaped = Collections.newSetFromMap(new IdentityHashMap<>());
+        /** property functions, read by a call */
+        private final Set<Token> properties = Collections.newSetFromMap(new IdentityHashMap<>());
+        private final Stack<Object> functions = new Stack<>();
+
+        /**
+         * @return whether the variable is declared in this analysis, so that its kind is known.
+         */
+        boolean isDeclared(Token target) {
+            return declarations.containsKey(target);
+        }
+
+        /**
+         * @return whether the variable can only be changed by the function declaring it.
+         */
+        boolean isLocal(Token target) {
+            return declarations.containsKey(target) && !escaped.contains(target);
+        }
+
+        private void declare(Token name) {
+            declarations.put(name, functions.isEmpty() ? null : functions.peek());
+        }
+
+        @Override
+        public void enterFunctionStmt(Stmt.Function stmt) {
+            declare(stmt.name);
+            if (stmt.isProperty) properties.add(stmt.name);
+            functions.push(stmt);
+            stmt.parameters.forEach(this::declare);
+        }
+
+        @Override
+        public void leaveFunctionStmt(Stmt.Function stmt) {
+            functions.pop();
+        }
+
+        @Override
+        public void enterLambdaExpr(Expr.Lambda lambda) {
+            functions.push(lambda);
+            lambda.parameters.forEach(this::declare);
+        }
+
+        @Override
+        public void leaveLambdaExpr(Expr.Lambda lambda) {
+            functions.pop();
+        }
+
+        @Override
+        public void enterClassStmt(Stmt.Class stmt) {
+            declare(stmt.name);
+        }
+
+        @Override
+        public void enterVarStmt(Stmt.Var stmt) {
+            declare(stmt.name);
+        }
+
+        @Override
+        public void enterAssignExpr(Expr.Assign assign) {
+            var function = functions.isEmpty() ? null : functions.peek();
+            if (declarations.get(assign.target) != function)
+                escaped.add(assign.target);
+        }
+    }
+
+    /**
+     * What a loop declares, assigns and calls.
+     */
+    private static class LoopScan extends Walk.Base {
+        private final Set<Token> declared = Collections.newSetFromMap(new IdentityHashMap<>());
+        private final Set<Token> assigned = Collections.newSetFromMap(new IdentityHashMap<>());
+        private final Assignments assignments;
+        private boolean callsCode = false;
+
+        LoopScan(Assignments assignments) {
+            this.assignments = assignments;
+        }
+
+        @Override
+        public void enterVarStmt(Stmt.Var stmt) {
+            declared.add(stmt.name);
+        }
+
+        @Override
+        public void enterFunctionStmt(Stmt.Function stmt) {
+            declared.add(stmt.name);
+        }
+
+        @Override
+        public void enterClassStmt(Stmt.Class stmt) {
+            declared.add(stmt.name);
+        }
+
+        @Override
+        public void enterAssignExpr(Expr.Assign assign) {
+            assigned.add(assign.target);
+        }
+
+        @Override
+        public void enterCallExpr(Expr.Call call) {
+            if (!isStringMethod(call.callee)) callsCode = true;
+        }
+
+        @Override
+        public void enterGetExpr(Expr.Get get) {
+            if (!isStringMethod(get)) callsCode = true;
+        }
+
+        @Override
+        public void enterSuperExpr(Expr.Super expr) {
+            callsCode = true;
+        }
+
+        @Override
+        public void enterVariableExpr(Expr.Variable variable) {
+            if (assignments.properties.contains(variable.target) || !assignments.isDeclared(variable.target))
+                callsCode = true;
+        }
+    }
+
+    private final Assignments assignments;
+    private final Map<Expr.Invariant, Stmt.While> owners = new IdentityHashMap<>();
+    /** loops being walked, null at a function boundary */
+    private final Stack<Stmt.While> loops = new Stack<>();
+    /** loop whose invariants are being cached, and what it does */
+    private Stmt.While loop = null;
+    private LoopScan scan = null;
+
+    public WalkInvariant(Assignments assignments) {
+        this.assignments = assignments;
+    }
+
+    @Override
+    public void enterWhileStmt(Stmt.While stmt) {
+        loop = stmt;
+        scan = new LoopScan(assignments);
+        new Walker(List.of(scan), stdio()).walk(stmt);
+        stmt.condition = hoist(stmt.condition);
+        hoistIn(stmt.body);
+        loops.push(stmt);
+    }
+
+    @Override
+    public void leaveWhileStmt(Stmt.While stmt) {
+        loops.pop();
+    }
+
+    @Override
+    public void enterFunctionStmt(Stmt.Function stmt) {
+        loops.push(null);
+    }
+
+    @Override
+    public void leaveFunctionStmt(Stmt.Function stmt) {
+        loops.pop();
+    }
+
+    @Override
+    public void enterLambdaExpr(Expr.Lambda lambda) {
+        loops.push(null);
+    }
+
+    @Override
+    public void leaveLambdaExpr(Expr.Lambda lambda) {
+        loops.pop();
+    }
+
+    /**
+     * The cache of an invariant is found by counting the loops with a cache up to its own loop.
+     */
+    @Override
+    public void enterInvariantExpr(Expr.Invariant invariant) {
+        var owner = owners.get(invariant);
+        int hops = 0;
+        for (int i = loops.size() - 1; loops.get(i) != owner; i--) {
+            if (loops.get(i).invariants > 0) hops++;
+        }
+        invariant.hops = hops;
+    }
+
+    private void hoistIn(Stmt stmt) {
+        if (stmt instanceof Stmt.Block block) {
+            block.statements.forEach(this::hoistIn);
+        } else if (stmt instanceof Stmt.ForBlock forBlock) {
+            hoistIn(forBlock.body);
+            hoistIn(forBlock.updater);
+        } else if (stmt instanceof Stmt.If ifStmt) {
+            ifStmt.condition = hoist(ifStmt.condition);
+            hoistIn(ifStmt.then);
+            hoistIn(ifStmt.else_);
+        } else if (stmt instanceof Stmt.While whileStmt) {
+            whileStmt.condition = hoist(whileStmt.condition);
+            hoistIn(whileStmt.body);
+        } else if (stmt instanceof Stmt.Expression expr) {
+            expr.expression = hoist(expr.expression);
+        } else if (stmt instanceof Stmt.Print print) {
+            print.expression = hoist(print.expression);
+        } else if (stmt instanceof Stmt.Last last) {
+            last.expression = hoist(last.expression);
+        } else if (stmt instanceof Stmt.Return returnStmt) {
+            returnStmt.value = hoist(returnStmt.value);
+        } else if (stmt instanceof Stmt.Var var) {
+            var.initializer = hoist(var.initializer);
+        }
+        // Functions and classes are left to their own loops
+    }
+
+    /**
+     * @return the expression with its largest invariant subexpressions cached.
+     */
+    private Expr hoist(Expr expr) {
+        if (expr == null || expr instanceof Expr.Literal || expr instanceof Expr.Variable) {
+            return expr;
+        } else if (isInvariant(expr)) {
+            var invariant = new Expr.Invariant(expr);
+            invariant.slot = loop.invariants++;
+            owners.put(invariant, loop);
+            return invariant;
+        } else if (expr instanceof Expr.Assign assign) {
+            assign.value = hoist(assign.value);
+        } else if (expr instanceof Expr.Binary binary) {
+            binary.left = hoist(binary.left);
+            binary.right = hoist(binary.right);
+        } else if (expr instanceof Expr.Call call) {
+            call.callee = hoist(call.callee);
+            call.arguments.replaceAll(this::hoist);
+        } else if (expr instanceof Expr.Get get) {
+            get.object = hoist(get.object);
+        } else if (expr instanceof Expr.Inline inline) {
+            inline.call.arguments.replaceAll(this::hoist);
+        } else if (expr instanceof Expr.Set set) {
+            set.object = hoist(set.object);
+            set.value = hoist(set.value);
+        } else if (expr instanceof Expr.Ternary ternary) {
+            ternary.left = hoist(ternary.left);
+            ternary.middle = hoist(ternary.middle);
+            ternary.right = hoist(ternary.right);
+        } else if (expr instanceof Expr.TypeCheck typeCheck) {
+            typeCheck.value = hoist(typeCheck.value);
+        } else if (expr instanceof Expr.Unary unary) {
+            unary.right = hoist(unary.right);
+        }
+        return expr;
+    }
+
+    private boolean isInvariant(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            return true;
+        } else if (expr instanceof Expr.Variable variable) {
+            return isInvariant(variable.target);
+        } else if (expr instanceof Expr.Unary unary) {
+            return isInvariant(unary.right);
+        } else if (expr instanceof Expr.Binary binary) {
+            return isInvariant(binary.left) && isInvariant(binary.right);
+        } else if (expr instanceof Expr.Ternary ternary) {
+            return isInvariant(ternary.left) && isInvariant(ternary.middle) && isInvariant(ternary.right);
+        } else if (expr instanceof Expr.Get get) {
+            return isStringMethod(get);
+        } else if (expr instanceof Expr.Call call) {
+            return isStringMethod(call.callee) && call.arguments.stream().allMatch(this::isInvariant);
+        }
+        return false;
+    }
+
+    private boolean isInvariant(Token target) {
+        return target != null
+                && assignments.isDeclared(target)
+                && !scan.declared.contains(target)
+                && !scan.assigned.contains(target)
+                && !assignments.properties.contains(target)
+                && (!scan.callsCode || assignments.isLocal(target));
+    }
+
+    /**
+     * @return whether the expression is a property of a string literal (natives without side effects).
+     */
+    private static boolean isStringMethod(Expr expr) {
+        return expr instanceof Expr.Get get && get.object instanceof Expr.Literal literal && literal.value instanceof String;
+    }
+}
@@ -145,7 +145,7 @@ public class WalkReturn extends Walk.Base {
                     // We report the warning at the return token causing the dead code, because
                     // we have no information token or source code line available for the dead code statement.
                     // TODO (one day) add line info for every ast element.
-                    stdio().warningAtToken(token, "Dead code: " + Stdio.astOneLinePrinter.print(stmt));
+                    stdio().warningAtToken(token, "Dead code: " + new AstPrinter(" ").print(stmt));
                 }
             }
             // Level up
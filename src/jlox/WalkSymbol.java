@@ -1,23 +1,33 @@
 package jlox;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 import java.util.Stack;
 
 public class WalkSymbol extends Walk.Base {
 
-    private final Environment environment;
+    private final SymbolTable environment;
 
     private final Stack<Symbol> functions = new Stack<>();
     private final Stack<Stmt.Class> classes = new Stack<>();
-
-    public WalkSymbol(Environment environment) {
+    /** body of the function being entered, its declarations go in the scope of the parameters */
+    private Stmt functionBody = null;
+    /** declaration tokens of the local symbols never read */
+    private final Set<Token> unused = Collections.newSetFromMap(new IdentityHashMap<>());
+    /** declaration tokens of the variables without initializer */
+    private final Set<Token> uninitialized = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    public WalkSymbol(SymbolTable environment) {
         this.environment = environment;
     }
 
     @Override
     public void enterClassStmt(Stmt.Class stmt) {
-        defineSymbol(stmt.name, Symbol.Type.CLASS, true);
+        var klass = defineSymbol(stmt.name, Symbol.Type.CLASS, true);
+        if (klass != null) stmt.slot = klass.slot;
         List<String> visited = new ArrayList<>();
         for (var superclass: stmt.superclasses) {
             if (stmt.name.lexeme().equals(superclass.name.lexeme())) {
@@ -56,13 +66,15 @@ public class WalkSymbol extends Walk.Base {
     public void enterFunctionStmt(Stmt.Function stmt) {
         if (!stmt.kind.equals("method") || stmt.isClass) {
             var fun = defineSymbol(stmt.name, Symbol.Type.FUN, true);
+            if (fun != null) stmt.slot = fun.slot;
             functions.push(fun);
         }
-        enterFunction(stmt.parameters);
+        enterFunction(stmt.parameters, stmt.body);
     }
 
     @Override
     public void leaveFunctionStmt(Stmt.Function stmt) {
+        stmt.locals = environment.slotCount();
         pop();
         if (!stmt.kind.equals("method") || stmt.isClass) {
             var fun = functions.pop();
@@ -75,29 +87,38 @@ public class WalkSymbol extends Walk.Base {
 
     @Override
     public void enterLambdaExpr(Expr.Lambda lambda) {
-        enterFunction(lambda.parameters);
+        enterFunction(lambda.parameters, lambda.body);
     }
 
     @Override
     public void leaveLambdaExpr(Expr.Lambda expr) {
+        expr.locals = environment.slotCount();
         pop();
     }
 
     @Override
     public void enterBlockStmt(Stmt.Block block) {
-        if (environment.hasNoLocalParameters())
+        block.scoped = block != functionBody && block.statements.stream().anyMatch(WalkSymbol::isDeclaration);
+        functionBody = null;
+        if (block.scoped)
             environment.push();
     }
 
     @Override
     public void leaveBlockStmt(Stmt.Block block) {
-        if (environment.hasNoLocalParameters())
+        if (block.scoped)
             pop();
     }
 
+    private static boolean isDeclaration(Stmt stmt) {
+        return stmt instanceof Stmt.Var || stmt instanceof Stmt.Function || stmt instanceof Stmt.Class;
+    }
+
     @Override
     public void leaveVarStmt(Stmt.Var var) {
-        defineSymbol(var.name, Symbol.Type.VAR, var.isReadonly);
+        var sym = defineSymbol(var.name, Symbol.Type.VAR, var.isReadonly);
+        if (sym != null) var.slot = sym.slot;
+        if (var.initializer == null) uninitialized.add(var.name);
     }
 
     @Override
@@ -108,6 +129,8 @@ public class WalkSymbol extends Walk.Base {
                 stdio().errorAtToken(assignee.token, "%s cannot be modified.".formatted(assignee.name()));
             }
             assign.target = assignee.token;
+            assign.hops = environment.hops(assignee);
+            assign.slot = assignee.slot;
         } catch (LoxError error) {
             stdio().errorAtToken(error.token, error.getMessage());
         }
@@ -117,8 +140,13 @@ public class WalkSymbol extends Walk.Base {
     public void enterVariableExpr(Expr.Variable variable) {
         try {
             var sym = environment.getSymbol(variable.name);
-            sym.use();
+            // Predefined symbols are shared by the analyses running in parallel, and never unused
+            if (!SymbolTable.isPredefined(sym)) sym.use();
             variable.target = sym.token;
+            variable.hops = environment.hops(sym);
+            variable.slot = sym.slot;
+            // Only these reads check at runtime that the variable holds a value
+            variable.checked = uninitialized.contains(sym.token) || environment.isTopLevel(sym);
         } catch (LoxError error) {
             stdio().errorAtToken(error.token, error.getMessage());
         }
@@ -131,6 +159,13 @@ public class WalkSymbol extends Walk.Base {
             return;
         }
         var klass = classes.peek();
+        try {
+            var self = environment.getSymbol(klass.self);
+            expr.hops = environment.hops(self);
+            expr.slot = self.slot;
+        } catch (LoxError error) {
+            // no self here (class method), reported at runtime
+        }
         if (klass.superclasses.isEmpty()) {
             stdio().errorAtToken(expr.keyword, "Class %s has no superclasses.".formatted(klass.name.lexeme()));
             return;
@@ -150,7 +185,8 @@ public class WalkSymbol extends Walk.Base {
         }
     }
 
-    private void enterFunction(List<Token> parameters) {
+    private void enterFunction(List<Token> parameters, Stmt body) {
+        functionBody = body;
         environment.push();
         for (var parameter : parameters) {
             defineSymbol(parameter, Symbol.Type.PARAMETER, false);
@@ -181,17 +217,22 @@ public class WalkSymbol extends Walk.Base {
         if (! checkIdentifierName(token, type))
             return null;
         try {
-            return environment.defineSymbol(token, token, type, readonlySvp);
+            return environment.defineSymbol(token, type, readonlySvp);
         } catch (LoxError error) {
             stdio().errorAtToken(error.token, error.getMessage());
         }
         return null;
     }
 
+    boolean isUnused(Token declaration) {
+        return unused.contains(declaration);
+    }
+
     private void pop() {
         for(Symbol sym : environment.localSymbols()) {
             if (sym.isUnused() && sym.type != Symbol.Type.SPECIAL) {
                 stdio().warningAtToken(sym.token, sym.name() + " is unused.");
+                unused.add(sym.token);
             }
         }
         environment.pop();
@@ -124,6 +124,17 @@ public class Walker implements Stmt.VoidVisitor, Expr.VoidVisitor, WalkerData {
         walk(grouping.expression);
     }
 
+    @Override
+    public void visitInlineExpr(Expr.Inline inline) {
+        walkAll(inline.call.arguments);
+        walk(inline.body);
+    }
+
+    @Override
+    public void visitInvariantExpr(Expr.Invariant invariant) {
+        walk(invariant.expression);
+    }
+
     @Override
     public void visitLambdaExpr(Expr.Lambda lambda) {
         walk(lambda.body);
@@ -1,18 +1,31 @@
 package jlox.tests;
 
 import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.CsvFileSource;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.MethodSource;
 import org.junit.jupiter.params.provider.ValueSource;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
 import jlox.Lox;
+import jlox.LoxService;
+import jlox.Stdio;
 
 class LoxTest {
 
@@ -73,14 +86,65 @@ class LoxTest {
         assertEquals("", result.stderr());
     }
 
+    @ParameterizedTest
+    @CsvFileSource(
+            resources = "LoxTest_Interpret.csv",
+            numLinesToSkip = 1,
+            delimiter = '¤')
+    void testClosureCompiler(String description, String input, String expectedResult) {
+        testInterpreter(description, input, expectedResult, Lox.RunPhase.CLOSURE);
+    }
+
+    @ParameterizedTest
+    @CsvFileSource(
+            resources = "LoxTest_Interpret.csv",
+            numLinesToSkip = 1,
+            delimiter = '¤')
+    void testBytecode(String description, String input, String expectedResult) {
+        testInterpreter(description, input, expectedResult, Lox.RunPhase.BYTECODE);
+    }
+
+    private void testInterpreter(String description, String input, String expectedResult, Lox.RunPhase phase) {
+        input = transform(input);
+        expectedResult = transform(expectedResult);
+        var result = Lox.run(input, phase);
+        assertEquals(
+                expectedResult,
+                result.stdout().replace('\n', ' ').stripTrailing(),
+                description + "\n\n >> stderr: %s\n".formatted(result.stderr()));
+        assertEquals("", result.stderr());
+    }
+
     @ParameterizedTest
     @CsvFileSource(
             resources = "LoxTest_Advanced.csv",
             numLinesToSkip = 1,
             delimiter = '¤')
     void testRuntimeError(String description, String input, String expectedErrors) {
+        testRuntimeError(description, input, expectedErrors, Lox.RunPhase.INTERPRET);
+    }
+
+    @ParameterizedTest
+    @CsvFileSource(
+            resources = "LoxTest_Advanced.csv",
+            numLinesToSkip = 1,
+            delimiter = '¤')
+    void testRuntimeErrorClosureCompiler(String description, String input, String expectedErrors) {
+        testRuntimeError(description, input, expectedErrors, Lox.RunPhase.CLOSURE);
+    }
+
+    @ParameterizedTest
+    @CsvFileSource(
+            resources = "LoxTest_Advanced.csv",
+            numLinesToSkip = 1,
+            delimiter = '¤')
+    void testRuntimeErrorBytecode(String description, String input, String expectedErrors) {
+        testRuntimeError(description, input, expectedErrors, Lox.RunPhase.BYTECODE);
+    }
+
+    private void testRuntimeError(String description, String input, String expectedErrors, Lox.RunPhase phase) {
         input = transform(input);
-        var result = Lox.run(input);
+        var result = Lox.run(input, phase);
         var stdout = result.stdout().trim();
         var stderr = result.stderr().trim();
         description += "\n >> stdout: %s'%s'\n".formatted(
@@ -130,8 +194,8 @@ class LoxTest {
         }
     }
 
-    @ParameterizedTest
-    @ValueSource(strings = {
+    static Stream<String> snapshots() {
+        return Stream.of(
             "chap8-block-and-scope",
             "chap9-fibonacci",
             "chap10-fibonacci-recursive",
@@ -146,13 +210,317 @@ class LoxTest {
             "chap12-properties",
             "chap12-class-methods",
             "chap4-string-with-escapes",
-            "chap9-continue-for"
+            "chap9-continue-for",
+            "jit-numeric-kernels",
+            "inlining"
+        );
+    }
+
+    /**
+     * Binary and unary expressions allocate nothing but their boxed number results.
+     */
+    @Test
+    void testExpressionAllocations() {
+        // Only one number (24 bytes) allocated per iteration: i + 1
+        var loop = "var i = 0; var n = %d; while (i < n) i = !(i < 0) and i >= 0 or i == n ? i + 1 : i - 1; print i;";
+        double perIteration = allocatedPerIteration(loop, Lox.RunPhase.INTERPRET);
+        assertTrue(perIteration < 32, "%.1f bytes allocated per iteration".formatted(perIteration));
+    }
+
+    /**
+     * A call (not inlined) allocates its arguments array, which holds the values of its scope, and its scope:
+     * no argument list, no symbol.
+     */
+    @Test
+    void testCallAllocations() {
+        var loop = "fun f(a, b) { return a; } var i = 0; var n = %d; while (i < n) i = f(i, \"\") + 1; print i;";
+        double perIteration = allocatedPerIteration(loop, Lox.RunPhase.INTERPRET, false);
+        assertTrue(perIteration < 96, "%.1f bytes allocated per iteration".formatted(perIteration));
+    }
+
+    /**
+     * Constant expressions are folded before running: only i + 1 is computed in the loop.
+     */
+    @Test
+    void testFoldingAllocations() {
+        var loop = "const k = 3; var x = 0; var i = 0; var n = %d; "
+                + "while (i < n) { x = (k * 2 + 1) * 10 ** 2 / -(4 - 8); i = i + 1; } print i;";
+        double perIteration = allocatedPerIteration(loop, Lox.RunPhase.INTERPRET);
+        assertTrue(perIteration < 32, "%.1f bytes allocated per iteration".formatted(perIteration));
+    }
+
+    /**
+     * A property declared on an earlier REPL line is read at each iteration, as in a single script.
+     */
+    @Test
+    void testInvariantPropertyOfEarlierLine() {
+        var lox = new Lox();
+        var declaration = lox.execute("var cnt = 0; fun p : cnt;", Lox.RunPhase.INTERPRET_MORE);
+        assertEquals("", declaration.stderr());
+        var loop = "var s = \"\"; for (var i = 0; i < 3; i = i + 1) { cnt = i; s = s + (p + 0); } print s;";
+        var result = lox.execute(loop, Lox.RunPhase.INTERPRET_MORE);
+        assertEquals("", result.stderr());
+        assertEquals("012", result.stdout().trim());
+    }
+
+    /**
+     * Loop invariant expressions are computed once per run of the loop: only i + 1 is computed again.
+     */
+    @Test
+    void testInvariantAllocations() {
+        var loop = "var a = 3; var b = 4; var x = 0; var i = 0; var n = %d; "
+                + "while (i < n) { x = a * b - a / b; i = i + 1; } print i;";
+        double perIteration = allocatedPerIteration(loop, Lox.RunPhase.INTERPRET);
+        assertTrue(perIteration < 32, "%.1f bytes allocated per iteration".formatted(perIteration));
+    }
+
+    /**
+     * An inlined call allocates nothing: only i + 1 twice and x * x are computed.
+     */
+    @Test
+    void testInliningAllocations() {
+        var loop = "fun square(x) { return x * x; } var x = 0; var i = 0; var n = %d; "
+                + "while (i < n) { x = square(i + 1); i = i + 1; } print i;";
+        double perIteration = allocatedPerIteration(loop, Lox.RunPhase.INTERPRET);
+        assertTrue(perIteration < 80, "%.1f bytes allocated per iteration".formatted(perIteration));
+    }
+
+    /**
+     * A parenthesised call is inlined too: it allocates as much as the call without parentheses.
+     */
+    @Test
+    void testInliningParenthesisedCall() {
+        var loop = "fun square(x) { return x * x; } var x = 0; var i = 0; var n = %d; "
+                + "while (i < n) { x = %s + 1; i = i + 1; } print i;";
+        double plain = allocatedPerIteration(loop.replace("%s", "square(i + 1)"), Lox.RunPhase.INTERPRET);
+        double grouped = allocatedPerIteration(loop.replace("%s", "(square(i + 1))"), Lox.RunPhase.INTERPRET);
+        assertTrue(grouped < plain + 8, "%.1f bytes allocated per iteration, %.1f without parentheses"
+                .formatted(grouped, plain));
+    }
+
+    /**
+     * Scripts run in parallel, each in its own context, see their own globals, classes and output only.
+     * They share the predefined String class, whose instances take fields.
+     */
+    @Test
+    void testConcurrentContexts() throws Exception {
+        var script = """
+                var id = %d;
+                class Counter {
+                    init(start) { self.count = start; }
+                    add(n) { self.count = self.count + n; return self; }
+                }
+                fun fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); }
+                fun adder(k) { return fun(x) x + k; }
+                var s = String();
+                s.tag = id;
+                var c = Counter(id * 100);
+                c.add(id).add(adder(id)(-id));
+                print c.count + s.tag - id + fib(15);
+                """;
+        var phases = new Lox.RunPhase[] { Lox.RunPhase.INTERPRET, Lox.RunPhase.CLOSURE, Lox.RunPhase.BYTECODE };
+        var pool = Executors.newFixedThreadPool(8);
+        try {
+            var results = new ArrayList<Future<Stdio>>();
+            for (int id = 0; id < 1000; id++) {
+                var source = script.formatted(id);
+                var phase = phases[id % phases.length];
+                results.add(pool.submit(() -> new Lox().execute(source, phase)));
+            }
+            for (int id = 0; id < results.size(); id++) {
+                var result = results.get(id).get();
+                assertEquals("", result.stderr(), "script " + id);
+                assertEquals((101 * id + 610) + "", result.stdout().trim(), "script " + id);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * The service runs more scripts than its threads, and measures them.
+     */
+    @Test
+    void testService() throws Exception {
+        try (var service = new LoxService(4)) {
+            var results = new ArrayList<CompletableFuture<Stdio>>();
+            for (int id = 0; id < 200; id++) {
+                results.add(service.submit("fun twice(x) { return 2 * x; } print twice(%d);".formatted(id),
+                        Lox.RunPhase.CLOSURE, Duration.ofSeconds(30)));
+            }
+            for (int id = 0; id < results.size(); id++) {
+                var result = results.get(id).get();
+                assertEquals("", result.stderr(), "script " + id);
+                assertEquals(2 * id + "", result.stdout().trim(), "script " + id);
+            }
+            var metrics = service.metrics();
+            assertEquals(200, metrics.completed());
+            assertTrue(metrics.scriptsPerSecond() > 0);
+            assertTrue(metrics.p50().compareTo(metrics.p99()) <= 0, metrics.toString());
+        }
+    }
+
+    /**
+     * The calls stop at exactly maxDepth in every engine, compiled kernels included,
+     * at a depth that the JVM stack holds whatever its size.
+     */
+    @ParameterizedTest
+    @CsvSource(delimiter = '¤', value = {
+            "Numeric recursion ¤ fun f(n) { if (n == 0) return 0; return 1 + f(n - 1); } print f(99); print f(100);",
+            "Compiled numeric recursion ¤ fun f(n) { if (n == 0) return 0; return 1 + f(n - 1); } "
+                    + "for (var i = 0; i < 2000; i = i + 1) f(1); print f(99); print f(100);",
+            "String recursion ¤ fun f(n) { if (n == 0) return \"\"; return \"a\" + f(n - 1); } "
+                    + "print f(99).length; print f(100).length;",
+            "Method recursion ¤ class C { m(n) { if (n == 0) return 0; return 1 + self.m(n - 1); } } "
+                    + "print C().m(99); print C().m(100);",
+    })
+    void testMaxDepth(String description, String source) {
+        for (var phase : new Lox.RunPhase[] { Lox.RunPhase.INTERPRET, Lox.RunPhase.CLOSURE, Lox.RunPhase.BYTECODE }) {
+            var lox = new Lox();
+            lox.maxDepth = 100;
+            var result = lox.execute(source, phase);
+            assertEquals("99", result.stdout().trim(), description + " " + phase);
+            assertEquals("[line 1] Error at '(': Stack overflow.", result.stderr().trim(), description + " " + phase);
+        }
+    }
+
+    /**
+     * An endless script stops where its budget runs out, whatever the engine, compiled kernels included.
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "var i = 0; while (true) { i = i + 1; }",
+            "fun f(n) { return f(n + 1); } print f(0);",
+            "fun spin(n) { while (n > 0) n = n + 1; return n; } for (var i = 0; i < 1000; i = i + 1) spin(-1); spin(1);",
     })
+    void testStepBudget(String source) {
+        for (var phase : new Lox.RunPhase[] { Lox.RunPhase.INTERPRET, Lox.RunPhase.CLOSURE, Lox.RunPhase.BYTECODE }) {
+            var lox = new Lox();
+            lox.maxSteps = 100_000;
+            var result = lox.execute(source, phase);
+            assertLinesMatch(List.of("\\[line 1\\] Error at '(while|\\()': Step budget exhausted\\."),
+                    List.of(result.stderr().trim()), phase.name());
+        }
+    }
+
+    /**
+     * Exit stops the script, not the host, with the exit code.
+     */
+    @Test
+    void testExit() {
+        var result = Lox.run("print 1; exit(3); print 2;");
+        assertEquals("1", result.stdout().trim());
+        assertTrue(result.hasExited());
+        assertEquals(3, result.getExitCode());
+        assertFalse(Lox.run("print 1;").hasExited());
+    }
+
+    /**
+     * The threads of the service hold the calls of its maximum depth, the JVM stack never overflows first.
+     */
+    @Test
+    void testServiceMaxDepth() throws Exception {
+        try (var service = new LoxService(2, 20_000)) {
+            var recursion = "fun f(n) { if (n == 0) return \"\"; return \"a\" + f(n - 1); } print f(%d).length;";
+            var deepest = service.submit(recursion.formatted(19_999)).get();
+            assertEquals("", deepest.stderr());
+            assertEquals("19999", deepest.stdout().trim());
+            var tooDeep = service.submit(recursion.formatted(20_000)).get();
+            assertEquals("[line 1] Error at '(': Stack overflow.", tooDeep.stderr().trim());
+        }
+    }
+
+    /**
+     * A runaway script is cancelled at its timeout, its thread freed for the next scripts.
+     */
+    @Test
+    void testServiceTimeout() throws Exception {
+        try (var service = new LoxService(1)) {
+            var endless = service.submit("while (true) {}", Lox.RunPhase.INTERPRET, Duration.ofMillis(100));
+            var next = service.submit("print 1;");
+            assertLinesMatch(List.of("\\[line 1\\] Error at 'while': Script cancelled\\."),
+                    List.of(endless.get(10, TimeUnit.SECONDS).stderr().trim()));
+            assertEquals("1", next.get(10, TimeUnit.SECONDS).stdout().trim());
+        }
+    }
+
+    /**
+     * The timeout of a script counts from the start of its run, not from its submission.
+     */
+    @Test
+    void testServiceTimeoutAfterWait() throws Exception {
+        try (var service = new LoxService(1)) {
+            var busy = service.submit("var t = clock(); while (clock() - t < 0.5) {} print 0;");
+            var queued = service.submit("var i = 0; while (i < 10000) i = i + 1; print i;",
+                    Lox.RunPhase.INTERPRET, Duration.ofMillis(200));
+            assertEquals("0", busy.get(10, TimeUnit.SECONDS).stdout().trim());
+            var result = queued.get(10, TimeUnit.SECONDS);
+            assertEquals("", result.stderr());
+            assertEquals("10000", result.stdout().trim());
+            assertTrue(service.metrics().scriptsPerSecond() > 0);
+        }
+    }
+
+    private static double allocatedPerIteration(String loop, Lox.RunPhase phase) {
+        return allocatedPerIteration(loop, phase, true);
+    }
+
+    private static double allocatedPerIteration(String loop, Lox.RunPhase phase, boolean inlining) {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assumptions.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        long[] allocated = new long[2];
+        int[] iterations = { 200_000, 400_000 };
+        for (int round = 0; round < 3; round++) {
+            for (int k = 0; k < 2; k++) {
+                long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+                var lox = new Lox();
+                lox.inlining = inlining;
+                var result = lox.execute(loop.formatted(iterations[k]), phase);
+                allocated[k] = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+                assertEquals(iterations[k] + "", result.stdout().trim(), result.stderr());
+            }
+        }
+        return (double) (allocated[1] - allocated[0]) / (iterations[1] - iterations[0]);
+    }
+
+    @ParameterizedTest
+    @MethodSource("snapshots")
     void testSnapShot(String fileName) throws IOException {
+        testSnapShot(fileName, Lox.RunPhase.INTERPRET);
+    }
+
+    @ParameterizedTest
+    @MethodSource("snapshots")
+    void testSnapShotClosureCompiler(String fileName) throws IOException {
+        testSnapShot(fileName, Lox.RunPhase.CLOSURE);
+    }
+
+    @ParameterizedTest
+    @MethodSource("snapshots")
+    void testSnapShotBytecode(String fileName) throws IOException {
+        testSnapShot(fileName, Lox.RunPhase.BYTECODE);
+    }
+
+    /**
+     * Inlining does not change the output of the programs.
+     */
+    @ParameterizedTest
+    @MethodSource("snapshots")
+    void testSnapShotWithoutInlining(String fileName) throws IOException {
+        testSnapShot(fileName, Lox.RunPhase.INTERPRET, false);
+    }
+
+    private void testSnapShot(String fileName, Lox.RunPhase phase) throws IOException {
+        testSnapShot(fileName, phase, true);
+    }
+
+    private void testSnapShot(String fileName, Lox.RunPhase phase, boolean inlining) throws IOException {
         Path sourcePath = Path.of("src/jlox/tests/programs/" + fileName + ".lox");
         Path targetPath = Path.of("src/jlox/tests/snapshots/" + fileName + ".txt");
         var source = Files.readString(sourcePath);
-        var result = Lox.run(source);
+        var lox = new Lox();
+        lox.inlining = inlining;
+        var result = lox.execute(source, phase);
         var given = result.stdout() + "\n\n" + result.stderr();
         var sourceIsDraft = source.matches("(?is)^.*//.*draft.*");
         if (Files.exists(targetPath) && !sourceIsDraft) {
@@ -159,10 +159,13 @@ public class GenerateAst {
                   static class %s extends %s {
                 """.formatted(className, baseName));
 
-        // Fields
+        // Fields: 'var Type name' is a constructor parameter that passes may replace,
+        // 'Type name = init' is not a constructor parameter
         for (String field : fields.split(", ")) {
             if (field.contains("=")) {
                 writer.println("    %s;".formatted(field));
+            } else if (field.startsWith("var ")) {
+                writer.println("    %s;".formatted(field.substring(4)));
             } else {
                 writer.println("    final %s;".formatted(field));
             }
@@ -174,11 +177,12 @@ public class GenerateAst {
                         className,
                         Arrays.stream(fields.split(", "))
                                 .filter(field -> !field.contains("="))
+                                .map(field -> field.replaceFirst("^var ", ""))
                                 .collect(Collectors.joining(", "))));
         // > Initialise field
         for (String field : fields.split(", ")) {
             if (field.contains("=")) continue;
-            String name = field.split(" ")[1];
+            String name = field.replaceFirst("^var ", "").split(" ")[1];
             writer.println(
                     "      this.%s = %s;".formatted(name, name));
         }